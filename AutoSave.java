@@ -0,0 +1,285 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a game saved while it is played, as a checkpoint file plus a journal of the
+ * commands played since.
+ *
+ * A checkpoint is the whole game as written by GameEngine.save(), Undo history included.
+ * Taking one only freezes the game, copying the board and walking the Undo tree without
+ * copying the cells of its moves; a background thread serializes it to a temporary file,
+ * syncs it, renames it over the save file and syncs the directory, so the file on disk is
+ * always a complete checkpoint and a power loss cannot undo the rename once the new
+ * journal exists. Every command after that is appended to the journal by the same thread
+ * once it has run, and a new checkpoint is taken every CHECKPOINT_RECORDS commands, at
+ * every new game and on close. The game never waits for the disk.
+ *
+ * Files, big-endian:
+ * <pre>
+ *   save file:  int MAGIC ("SAVE"), byte VERSION, long generation, GameEngine.save()
+ *   journal:    int JOURNAL_MAGIC ("JRNL"), byte VERSION, long generation, then one byte
+ *               per command, its GameLoop.Command ordinal plus 1
+ * </pre>
+ * The journal only applies to the checkpoint with the same generation, so a crash
+ * between writing a checkpoint and starting its journal cannot replay commands twice.
+ * Reading the journal stops at the first byte that is not a command, which is where a
+ * crash cut it short.
+ */
+public final class AutoSave implements AutoCloseable {
+    public static final int MAGIC = 0x53415645;
+    public static final int JOURNAL_MAGIC = 0x4a524e4c;
+    public static final byte VERSION = 2;
+
+    // Commands journaled before the next checkpoint
+    static final int CHECKPOINT_RECORDS = 1024;
+
+    private static final GameLoop.Command[] COMMANDS = GameLoop.Command.values();
+
+    /**
+     * A game read back from the save file, with the commands journaled after it
+     */
+    public static final class Saved {
+        private final GameEngine engine;
+        private final List<GameLoop.Command> journal;
+
+        Saved(GameEngine engine, List<GameLoop.Command> journal) {
+            this.engine = engine;
+            this.journal = journal;
+        }
+
+        /**
+         * The game at the checkpoint
+         */
+        public GameEngine getEngine() {
+            return engine;
+        }
+
+        /**
+         * Commands to run on the engine, in order, to bring it up to date
+         */
+        public List<GameLoop.Command> getJournal() {
+            return journal;
+        }
+    }
+
+    private final Path file;
+    private final Path directory;
+    private final Path journal;
+    private final Path temp;
+    private final ThreadPoolExecutor writer;
+    private int records; // Commands journaled since the last checkpoint
+
+    // Writer thread only
+    private OutputStream journalOut;
+
+    private Future<?> lastWrite;
+    private volatile IOException failure; // First write error; later writes are skipped
+
+    /**
+     * Save to the given file, with the journal and the temporary file next to it. Nothing
+     * is written until the first checkpoint.
+     */
+    public AutoSave(Path file) {
+        this.file = file;
+        this.directory = file.toAbsolutePath().getParent();
+        this.journal = file.resolveSibling(file.getFileName() + ".journal");
+        this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "autosave-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public static boolean exists(Path file) {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Read the latest checkpoint and the journal that goes with it
+     *
+     * @throws IOException if there is no save file or it is damaged
+     */
+    public static Saved load(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a saved game");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported save version " + version);
+        }
+        long generation = in.readLong();
+        GameEngine engine = GameEngine.load(in);
+
+        List<GameLoop.Command> commands = new ArrayList<>();
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.resolveSibling(file.getFileName() + ".journal"));
+        } catch (NoSuchFileException e) {
+            // Crashed before the journal was started
+            return new Saved(engine, commands);
+        }
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (records.readInt() != JOURNAL_MAGIC || records.readUnsignedByte() != VERSION
+                    || records.readLong() != generation) {
+                // Left over from an older checkpoint
+                return new Saved(engine, commands);
+            }
+        } catch (EOFException e) {
+            return new Saved(engine, commands);
+        }
+        for (int record = records.read(); record > 0 && record <= COMMANDS.length; record = records.read()) {
+            commands.add(COMMANDS[record - 1]);
+        }
+        return new Saved(engine, commands);
+    }
+
+    /**
+     * Save the whole game and start a new journal after it. The calling thread only takes
+     * a frozen copy of the game; it is serialized and written in the background.
+     */
+    public void checkpoint(GameEngine engine) {
+        long generation = ThreadLocalRandom.current().nextLong();
+        GameEngine.Frozen game = engine.freeze();
+        records = 0;
+        submit(() -> {
+            if (journalOut != null) {
+                journalOut.close();
+                journalOut = null;
+            }
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                        1 << 16));
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(generation);
+                game.write(out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The rename must reach the disk before a journal of the new generation can
+            syncDirectory(directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journal)));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(generation);
+            out.flush();
+            journalOut = out;
+        });
+    }
+
+    /**
+     * Write the entries of a directory through to the disk, so a rename in it survives a
+     * power loss. Windows cannot open a directory this way, and there the rename is left
+     * to the file system.
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (AccessDeniedException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Journal a command that has just run on the engine, or take a checkpoint instead if
+     * the journal is long enough
+     */
+    public void logged(GameLoop.Command command, GameEngine engine) {
+        if (++records >= CHECKPOINT_RECORDS) {
+            checkpoint(engine);
+            return;
+        }
+        submit(() -> {
+            journalOut.write(command.ordinal() + 1);
+            // Hand a burst of commands to the OS together
+            if (writer.getQueue().isEmpty()) {
+                journalOut.flush();
+            }
+        });
+    }
+
+    /**
+     * Wait for every write to finish and close the journal
+     */
+    @Override
+    public void close() throws IOException {
+        submit(() -> {
+            if (journalOut != null) {
+                journalOut.close();
+                journalOut = null;
+            }
+        });
+        writer.shutdown();
+        try {
+            lastWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * Queue a write for the background thread. After a failure the journal is closed and
+     * the remaining writes are skipped, leaving the last good checkpoint and journal.
+     */
+    private void submit(Write write) {
+        lastWrite = writer.submit(() -> {
+            if (failure != null) {
+                return;
+            }
+            try {
+                write.run();
+            } catch (IOException e) {
+                failure = e;
+                if (journalOut != null) {
+                    try {
+                        journalOut.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Headless batch runner that plays many games on GameEngine without touching AWT.
+ *
+ * Usage: java BatchRunner [gridSize] [games] [threads] [targetScore] [random|expectimax|montecarlo|ntuple] [replayDir]
+ *
+ * With a replay directory every game is recorded there, for ReplayReader to play back.
+ */
+public class BatchRunner {
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * Totals for a batch of games
+     */
+    static class Result {
+        long games;
+        long moves;
+        long totalScore;
+        int bestTile;
+
+        void add(Result other) {
+            games += other.games;
+            moves += other.moves;
+            totalScore += other.totalScore;
+            bestTile = Math.max(bestTile, other.bestTile);
+        }
+    }
+
+    /**
+     * Player that picks uniformly among the moves that change the board
+     */
+    static final Player RANDOM = engine -> {
+        int legal = engine.legalMoves();
+        if (legal == 0) {
+            return null;
+        }
+        for (int k = ThreadLocalRandom.current().nextInt(Integer.bitCount(legal)); k > 0; k--) {
+            legal &= legal - 1;
+        }
+        return DIRECTIONS[Integer.numberOfTrailingZeros(legal)];
+    };
+
+    /**
+     * Create a player by name. Each thread gets its own, since players keep search state;
+     * n-tuple players share the weights at NTupleNetwork.defaultPath().
+     *
+     * @throws UncheckedIOException if the n-tuple weights cannot be opened
+     */
+    static Supplier<Player> playerFactory(String name) {
+        switch (name) {
+            case "random":
+                return () -> RANDOM;
+            case "expectimax":
+                return ExpectimaxPlayer::new;
+            case "montecarlo":
+                return MonteCarloPlayer::new;
+            case "ntuple": {
+                NTupleNetwork network;
+                try {
+                    network = NTupleNetwork.open(NTupleNetwork.defaultPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open n-tuple weights " + NTupleNetwork.defaultPath(), e);
+                }
+                return () -> new NTuplePlayer(network);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown player: " + name);
+        }
+    }
+
+    /**
+     * Play one game until no move is left
+     */
+    static void playGame(GameEngine engine, Player player, Result result) {
+        engine.resetGame();
+        playToEnd(engine, player, result);
+    }
+
+    /**
+     * Play and record one game into the replay directory
+     */
+    static void playGame(GameEngine engine, Player player, Result result, Path replayDir) throws IOException {
+        engine.resetGame();
+        String name = String.format("%dx%d-%016x.replay", engine.getGridSize(), engine.getGridSize(), engine.getSeed());
+        // The engine writes the moves; the replay is only closed here
+        ReplayWriter replay = engine.startRecording(Files.newOutputStream(replayDir.resolve(name)));
+        try {
+            playToEnd(engine, player, result);
+        } finally {
+            replay.close();
+        }
+    }
+
+    private static void playToEnd(GameEngine engine, Player player, Result result) {
+        while (!engine.isTerminal()) {
+            Direction direction = player.chooseMove(engine);
+            if (direction == null) {
+                break;
+            }
+            engine.step(direction);
+            result.moves++;
+        }
+        result.games++;
+        result.totalScore += engine.getScore();
+        int size = engine.getGridSize();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                result.bestTile = Math.max(result.bestTile, engine.valueAt(x, y));
+            }
+        }
+    }
+
+    /**
+     * Play the given number of games spread over a fixed number of threads
+     */
+    public static Result run(int gridSize, int targetScore, long games, int threads,
+                             Supplier<Player> players) throws Exception {
+        return run(gridSize, targetScore, games, threads, players, null);
+    }
+
+    /**
+     * Play the given number of games and record each one into replayDir unless it is null
+     */
+    public static Result run(int gridSize, int targetScore, long games, int threads,
+                             Supplier<Player> players, Path replayDir) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long share = games / threads + (t < games % threads ? 1 : 0);
+                futures.add(pool.submit(() -> {
+                    GameEngine engine = new GameEngine(gridSize, targetScore, false);
+                    Player player = players.get();
+                    Result result = new Result();
+                    for (long i = 0; i < share; i++) {
+                        if (replayDir == null) {
+                            playGame(engine, player, result);
+                        } else {
+                            playGame(engine, player, result, replayDir);
+                        }
+                    }
+                    return result;
+                }));
+            }
+            Result total = new Result();
+            for (Future<Result> future : futures) {
+                total.add(future.get());
+            }
+            return total;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long games = args.length > 1 ? Long.parseLong(args[1]) : 10000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int targetScore = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+        String player = args.length > 4 ? args[4] : "random";
+        Path replayDir = args.length > 5 ? Files.createDirectories(Paths.get(args[5])) : null;
+
+        long start = System.nanoTime();
+        Result result = run(gridSize, targetScore, games, threads, playerFactory(player), replayDir);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d games, %d moves in %.2f s on %d threads%n", result.games, result.moves, seconds, threads);
+        System.out.printf("%.0f games/s, %.0f moves/s%n", result.games / seconds, result.moves / seconds);
+        System.out.printf("average score %.1f, best tile %d%n",
+                result.games == 0 ? 0.0 : (double) result.totalScore / result.games, result.bestTile);
+    }
+}
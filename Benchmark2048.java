@@ -0,0 +1,171 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks for the engine hot path: move() in every direction, spawn (addTile),
+ * availableSpace() and canMove() on mid-game boards of several sizes.
+ *
+ * Each benchmark runs timed warmup and measurement iterations and reports throughput and
+ * bytes allocated per operation, the same figure JMH reports as gc.alloc.rate.norm.
+ * Mutating operations run on copies of the boards, all restored before each batch of
+ * calls with the clock stopped, so only the operation itself is timed; the "restore" row
+ * shows what restoring one board costs.
+ *
+ * Usage: java Benchmark2048 [sizes, e.g. 4,8,16,64] [iterationMillis] [iterations]
+ */
+public class Benchmark2048 {
+    private static final int BOARDS = 16; // Distinct mid-game boards per size
+    private static final int BATCH = 256; // Most operations between clock reads
+    private static final int BATCH_CELLS = 1 << 16; // Most cells restored for one batch
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot drop the work
+    private static volatile long sink;
+
+    /**
+     * One benchmarked operation on board number i
+     */
+    private interface Operation {
+        long run(int i);
+    }
+
+    /**
+     * Put board number i back the way it was before a mutating operation
+     */
+    private interface Restore {
+        void run(int i);
+    }
+
+    /**
+     * Mid-game boards: about half the cells filled, mostly with small tiles, then a few
+     * random moves so the tiles are packed the way play leaves them
+     */
+    static GameEngine[] midGameBoards(int size, long seed) {
+        Random random = new Random(seed);
+        Direction[] directions = Direction.values();
+        GameEngine[] engines = new GameEngine[BOARDS];
+        for (int b = 0; b < BOARDS; b++) {
+            GameEngine engine = new GameEngine(size, 2048, false);
+            Grid grid = engine.getGrid();
+            grid.clear();
+            for (int i = 0; i < grid.cellCount(); i++) {
+                if (random.nextBoolean()) {
+                    int exponent = 1;
+                    while (exponent < 11 && random.nextBoolean()) {
+                        exponent++;
+                    }
+                    grid.set(i, exponent);
+                }
+            }
+            for (int i = 0; i < 8; i++) {
+                engine.step(directions[random.nextInt(directions.length)]);
+            }
+            engines[b] = engine;
+        }
+        return engines;
+    }
+
+    /**
+     * Run one benchmark on boards 0 to batch - 1 and print its row. With a restore, every
+     * board is restored before each batch, outside the timed region.
+     */
+    static void measure(String name, int size, Operation op, Restore restore, int batch, long iterationMillis,
+            int iterations) {
+        // Warmup
+        run(op, restore, batch, iterationMillis);
+        run(op, restore, batch, iterationMillis);
+
+        double[] throughput = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int it = 0; it < iterations; it++) {
+            long bytesBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long[] timed = run(op, restore, batch, iterationMillis);
+            totalBytes += THREADS.getCurrentThreadAllocatedBytes() - bytesBefore;
+            totalOps += timed[0];
+            throughput[it] = timed[0] * 1e9 / timed[1];
+        }
+
+        double mean = 0;
+        for (double t : throughput) {
+            mean += t;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double t : throughput) {
+            variance += (t - mean) * (t - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        System.out.printf("%-16s %6d %16.0f %14.0f %12.2f%n", name, size, mean, error,
+                (double) totalBytes / totalOps);
+    }
+
+    /**
+     * Run batches of an operation for about iterationMillis
+     *
+     * @return operations run and nanoseconds spent in them
+     */
+    private static long[] run(Operation op, Restore restore, int batch, long iterationMillis) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long ops = 0;
+        long nanos = 0;
+        long acc = 0;
+        do {
+            if (restore != null) {
+                for (int i = 0; i < batch; i++) {
+                    restore.run(i);
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                acc += op.run(i);
+            }
+            nanos += System.nanoTime() - start;
+            ops += batch;
+        } while (System.nanoTime() < deadline);
+        sink += acc;
+        return new long[] {ops, nanos};
+    }
+
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : (args.length > 0 ? args[0] : "4,8,16,64").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        long iterationMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%-16s %6s %16s %14s %12s%n", "Benchmark", "size", "ops/s", "error", "B/op");
+        for (int size : sizes) {
+            GameEngine[] engines = midGameBoards(size, 2048L * size);
+
+            // Boards the mutating operations work on, copy i restored from board i % BOARDS;
+            // as many as fit in BATCH_CELLS, so small boards still read the clock rarely
+            int batch = Math.max(BOARDS, Math.min(BATCH, BATCH_CELLS / (size * size)) / BOARDS * BOARDS);
+            GameEngine[] copies = new GameEngine[batch];
+            for (int i = 0; i < batch; i++) {
+                copies[i] = new GameEngine(size, 2048, false);
+            }
+            Restore restore = i -> copies[i].getGrid().copyFrom(engines[i % BOARDS].getGrid());
+
+            measure("restore", size, i -> {
+                restore.run(i);
+                return 0;
+            }, null, batch, iterationMillis, iterations);
+            for (Direction direction : Direction.values()) {
+                measure("move " + direction, size, i -> copies[i].applyMove(direction) ? 1 : 0, restore, batch,
+                        iterationMillis, iterations);
+            }
+            measure("addTile", size, i -> copies[i].spawn() ? 1 : 0, restore, batch, iterationMillis, iterations);
+            measure("availableSpace", size, i -> engines[i % BOARDS].availableSpace(), null, BATCH,
+                    iterationMillis, iterations);
+            measure("canMove", size, i -> engines[i % BOARDS].canMove() ? 1 : 0, null, BATCH, iterationMillis,
+                    iterations);
+        }
+    }
+}
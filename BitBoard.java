@@ -0,0 +1,324 @@
+import java.util.Arrays;
+
+/**
+ * Bitboard engine for the standard 4x4 game.
+ *
+ * The whole board is packed into one long, four bits per cell. Each nibble holds the
+ * exponent of the tile (0 for empty, 1 for 2, 2 for 4, ...), and cell (x, y) lives at
+ * nibble x + 4 * y, so every row is one 16-bit word with x = 0 in the low nibble.
+ * Moves are four lookups into precomputed row tables; UP and DOWN go through a transpose.
+ */
+public final class BitBoard {
+    public static final int SIZE = 4;
+    public static final int CELLS = SIZE * SIZE;
+
+    /**
+     * Largest exponent a nibble can hold (32768). Two of these never merge.
+     */
+    public static final int MAX_EXPONENT = 15;
+
+    private static final int ROWS = 1 << 16;
+    private static final long ROW_MASK = 0xFFFFL;
+
+    private static final short[] ROW_LEFT = new short[ROWS];
+    private static final short[] ROW_RIGHT = new short[ROWS];
+    private static final int[] SCORE_LEFT = new int[ROWS];
+    private static final int[] SCORE_RIGHT = new int[ROWS];
+    // Bit e is set when a merge in the row produced exponent e
+    private static final short[] MERGED_LEFT = new short[ROWS];
+    private static final short[] MERGED_RIGHT = new short[ROWS];
+
+    static {
+        int[] line = new int[SIZE];
+        int[] out = new int[SIZE];
+        for (int row = 0; row < ROWS; row++) {
+            for (int i = 0; i < SIZE; i++) {
+                line[i] = (row >>> (4 * i)) & 0xF;
+            }
+
+            // Same rules as Java2048.moveLine followed by mergeLine
+            int score = 0;
+            int merged = 0;
+            Arrays.fill(out, 0);
+            int n = 0;
+            int last = 0;
+            for (int i = 0; i < SIZE; i++) {
+                int e = line[i];
+                if (e == 0) {
+                    continue;
+                }
+                if (last != 0 && last == e && e < MAX_EXPONENT) {
+                    out[n - 1] = e + 1;
+                    score += 1 << (e + 1);
+                    merged |= 1 << (e + 1);
+                    last = 0;
+                } else {
+                    out[n++] = e;
+                    last = e;
+                }
+            }
+
+            int result = 0;
+            for (int i = 0; i < SIZE; i++) {
+                result |= out[i] << (4 * i);
+            }
+            int reversedRow = reverseRow(row);
+            ROW_LEFT[row] = (short) result;
+            SCORE_LEFT[row] = score;
+            MERGED_LEFT[row] = (short) merged;
+            ROW_RIGHT[reversedRow] = (short) reverseRow(result);
+            SCORE_RIGHT[reversedRow] = score;
+            MERGED_RIGHT[reversedRow] = (short) merged;
+        }
+    }
+
+    private BitBoard() {
+    }
+
+    /**
+     * Reverse the four nibbles of a 16-bit row
+     */
+    private static int reverseRow(int row) {
+        return ((row & 0xF) << 12) | ((row & 0xF0) << 4) | ((row >>> 4) & 0xF0) | ((row >>> 12) & 0xF);
+    }
+
+    /**
+     * Swap rows and columns
+     */
+    public static long transpose(long board) {
+        long a1 = board & 0xF0F00F0FF0F00F0FL;
+        long a2 = board & 0x0000F0F00000F0F0L;
+        long a3 = board & 0x0F0F00000F0F0000L;
+        long a = a1 | (a2 << 12) | (a3 >>> 12);
+        long b1 = a & 0xFF00FF0000FF00FFL;
+        long b2 = a & 0x00FF00FF00000000L;
+        long b3 = a & 0x00000000FF00FF00L;
+        return b1 | (b2 >>> 24) | (b3 << 24);
+    }
+
+    /**
+     * Mirror the board left to right
+     */
+    public static long mirror(long board) {
+        return ((board & 0x000F000F000F000FL) << 12)
+                | ((board & 0x00F000F000F000F0L) << 4)
+                | ((board >>> 4) & 0x00F000F000F000F0L)
+                | ((board >>> 12) & 0x000F000F000F000FL);
+    }
+
+    /**
+     * Flip the board top to bottom
+     */
+    public static long flip(long board) {
+        return (board << 48)
+                | ((board & 0xFFFF0000L) << 16)
+                | ((board >>> 16) & 0xFFFF0000L)
+                | (board >>> 48);
+    }
+
+    /**
+     * Smallest of the 8 rotations and reflections of the board, so symmetric positions
+     * share one key
+     */
+    public static long canonical(long board) {
+        long best = board;
+        long b = mirror(board);
+        best = Math.min(best, b);
+        b = flip(b);
+        best = Math.min(best, b);
+        b = mirror(b);
+        best = Math.min(best, b);
+        b = transpose(board);
+        best = Math.min(best, b);
+        b = mirror(b);
+        best = Math.min(best, b);
+        b = flip(b);
+        best = Math.min(best, b);
+        b = mirror(b);
+        return Math.min(best, b);
+    }
+
+    /**
+     * Apply every row of the board through a row table
+     */
+    private static long applyRows(long board, short[] table) {
+        return ((long) (table[(int) (board & ROW_MASK)] & 0xFFFF))
+                | ((long) (table[(int) ((board >>> 16) & ROW_MASK)] & 0xFFFF) << 16)
+                | ((long) (table[(int) ((board >>> 32) & ROW_MASK)] & 0xFFFF) << 32)
+                | ((long) (table[(int) ((board >>> 48) & ROW_MASK)] & 0xFFFF) << 48);
+    }
+
+    private static int sumRows(long board, int[] table) {
+        return table[(int) (board & ROW_MASK)]
+                + table[(int) ((board >>> 16) & ROW_MASK)]
+                + table[(int) ((board >>> 32) & ROW_MASK)]
+                + table[(int) ((board >>> 48) & ROW_MASK)];
+    }
+
+    private static int orRows(long board, short[] table) {
+        return table[(int) (board & ROW_MASK)]
+                | table[(int) ((board >>> 16) & ROW_MASK)]
+                | table[(int) ((board >>> 32) & ROW_MASK)]
+                | table[(int) ((board >>> 48) & ROW_MASK)];
+    }
+
+    /**
+     * Board after sliding and merging in the given direction. No tile is spawned.
+     */
+    public static long move(long board, Direction direction) {
+        switch (direction) {
+            case LEFT:
+                return applyRows(board, ROW_LEFT);
+            case RIGHT:
+                return applyRows(board, ROW_RIGHT);
+            case UP:
+                return transpose(applyRows(transpose(board), ROW_LEFT));
+            case DOWN:
+                return transpose(applyRows(transpose(board), ROW_RIGHT));
+            default:
+                throw new IllegalArgumentException("Unknown direction: " + direction);
+        }
+    }
+
+    /**
+     * Points scored by a move, counted the same way as Java2048.mergeLine
+     */
+    public static int score(long board, Direction direction) {
+        switch (direction) {
+            case LEFT:
+                return sumRows(board, SCORE_LEFT);
+            case RIGHT:
+                return sumRows(board, SCORE_RIGHT);
+            case UP:
+                return sumRows(transpose(board), SCORE_LEFT);
+            case DOWN:
+                return sumRows(transpose(board), SCORE_RIGHT);
+            default:
+                throw new IllegalArgumentException("Unknown direction: " + direction);
+        }
+    }
+
+    /**
+     * Bitmask of the exponents produced by merges in a move, used for win detection
+     */
+    public static int mergedExponents(long board, Direction direction) {
+        switch (direction) {
+            case LEFT:
+                return orRows(board, MERGED_LEFT) & 0xFFFF;
+            case RIGHT:
+                return orRows(board, MERGED_RIGHT) & 0xFFFF;
+            case UP:
+                return orRows(transpose(board), MERGED_LEFT) & 0xFFFF;
+            case DOWN:
+                return orRows(transpose(board), MERGED_RIGHT) & 0xFFFF;
+            default:
+                throw new IllegalArgumentException("Unknown direction: " + direction);
+        }
+    }
+
+    /**
+     * Check if the player can make any move
+     */
+    public static boolean canMove(long board) {
+        long transposed = transpose(board);
+        return applyRows(board, ROW_LEFT) != board
+                || applyRows(board, ROW_RIGHT) != board
+                || applyRows(transposed, ROW_LEFT) != transposed
+                || applyRows(transposed, ROW_RIGHT) != transposed;
+    }
+
+    /**
+     * Get the exponent at the specified position
+     */
+    public static int exponentAt(long board, int x, int y) {
+        return (int) (board >>> (4 * (x + SIZE * y))) & 0xF;
+    }
+
+    /**
+     * Return the board with one cell set to the given exponent
+     */
+    public static long withExponent(long board, int index, int exponent) {
+        int shift = 4 * index;
+        return (board & ~(0xFL << shift)) | ((long) exponent << shift);
+    }
+
+    /**
+     * Count the empty cells
+     */
+    public static int emptyCount(long board) {
+        // Fold each nibble down to its low bit, then count nibbles that were zero
+        long x = board | (board >>> 2);
+        x |= x >>> 1;
+        return Long.bitCount(~x & 0x1111111111111111L);
+    }
+
+    /**
+     * Highest exponent on the board
+     */
+    public static int maxExponent(long board) {
+        int max = 0;
+        for (int i = 0; i < CELLS; i++) {
+            max = Math.max(max, (int) (board >>> (4 * i)) & 0xF);
+        }
+        return max;
+    }
+
+    /**
+     * Check if a grid is 4x4 with every tile small enough for a nibble
+     */
+    public static boolean fits(Grid grid) {
+        if (grid.size() != SIZE) {
+            return false;
+        }
+        for (int i = 0; i < CELLS; i++) {
+            if (grid.get(i) > MAX_EXPONENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pack a 4x4 grid. Check fits() first.
+     */
+    public static long fromGrid(Grid grid) {
+        long board = 0;
+        for (int i = 0; i < CELLS; i++) {
+            board |= (long) grid.get(i) << (4 * i);
+        }
+        return board;
+    }
+
+    /**
+     * Pack tile values (0 for empty, otherwise a power of two) in row-major order
+     */
+    public static long fromValues(int[] values) {
+        if (values.length != CELLS) {
+            throw new IllegalArgumentException("Expected " + CELLS + " cells but got " + values.length);
+        }
+        long board = 0;
+        for (int i = 0; i < CELLS; i++) {
+            int value = values[i];
+            if (value == 0) {
+                continue;
+            }
+            int exponent = Integer.numberOfTrailingZeros(value);
+            if (value != 1 << exponent || exponent == 0 || exponent > MAX_EXPONENT) {
+                throw new IllegalArgumentException("Tile value does not fit a bitboard: " + value);
+            }
+            board |= (long) exponent << (4 * i);
+        }
+        return board;
+    }
+
+    /**
+     * Unpack the board into tile values in row-major order
+     */
+    public static int[] toValues(long board, int[] values) {
+        for (int i = 0; i < CELLS; i++) {
+            int exponent = (int) (board >>> (4 * i)) & 0xF;
+            values[i] = exponent == 0 ? 0 : 1 << exponent;
+        }
+        return values;
+    }
+}
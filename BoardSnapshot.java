@@ -0,0 +1,107 @@
+/**
+ * Immutable view of a game after a command, as published by GameLoop for drawing.
+ *
+ * Consecutive snapshots share their cell array when the board did not change, so the
+ * board a move started from is exactly the previous snapshot's cells when that is the
+ * snapshot on screen.
+ */
+public final class BoardSnapshot {
+    private final int size;
+    private final byte[] cells; // Never written after construction
+    private final byte[] before; // Cells before the move, or null
+    private final Direction move;
+    private final int score;
+    private final boolean win;
+    private final boolean lose;
+    private final int game;
+    private final long inputNanos;
+
+    /**
+     * @param cells      row-major exponents, handed over and not copied
+     * @param before     cells of the previous snapshot if this one is a move that changed
+     *                   the board, else null
+     * @param game       number of games started before this one
+     * @param inputNanos System.nanoTime() when the command behind this snapshot was given
+     */
+    BoardSnapshot(int size, byte[] cells, byte[] before, Direction move, int score, boolean win, boolean lose,
+                  int game, long inputNanos) {
+        this.size = size;
+        this.cells = cells;
+        this.before = before;
+        this.move = move;
+        this.score = score;
+        this.win = win;
+        this.lose = lose;
+        this.game = game;
+        this.inputNanos = inputNanos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Exponent of cell index, row-major
+     */
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public int exponentAt(int x, int y) {
+        return cells[x + y * size];
+    }
+
+    /**
+     * Whether no command changed the board between another snapshot and this one
+     */
+    public boolean hasSameCells(BoardSnapshot other) {
+        return cells == other.cells;
+    }
+
+    /**
+     * Whether this snapshot is the move played from the given one, so it can be animated
+     */
+    public boolean followsFrom(BoardSnapshot previous) {
+        return before != null && before == previous.cells;
+    }
+
+    /**
+     * The move that led here, if followsFrom() holds for some snapshot
+     */
+    public Direction getMove() {
+        return move;
+    }
+
+    /**
+     * Copy of the cells before the move
+     */
+    public byte[] copyBefore() {
+        return before.clone();
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public boolean isWin() {
+        return win;
+    }
+
+    public boolean isLose() {
+        return lose;
+    }
+
+    /**
+     * Number of games started before this one; it changes when a new game starts
+     */
+    public int getGame() {
+        return game;
+    }
+
+    /**
+     * System.nanoTime() when the command this snapshot answers was given
+     */
+    public long getInputNanos() {
+        return inputNanos;
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Enum to represent movement directions
+ */
+public enum Direction {
+    LEFT, RIGHT, UP, DOWN
+}
@@ -0,0 +1,378 @@
+import java.util.function.BooleanSupplier;
+
+/**
+ * Depth-limited expectimax over player moves and tile spawns (90% a 2, 10% a 4).
+ * Depth is counted in plies, so a depth of 6 looks at three moves and three spawns.
+ *
+ * On 4x4 boards the search runs on BitBoard and caches chance nodes in a bounded
+ * transposition table. Boards are reduced to their canonical symmetry first, so mirrored
+ * and rotated positions share an entry. Other sizes run the same search on reusable
+ * Grid buffers without a cache, at most GRID_DEPTH plies deep since every spawn cell is
+ * a branch. Instances are not thread-safe.
+ *
+ * A search can be given a stop condition, for searches against a clock. It is polled
+ * every few chance nodes, and once it holds the search unwinds at once and its result is
+ * discarded; nothing it computed goes into the transposition table.
+ */
+public class ExpectimaxPlayer implements Player {
+    public static final int DEFAULT_DEPTH = 6;
+    public static final int DEFAULT_TABLE_BITS = 20;
+    public static final int GRID_DEPTH = 3;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Heuristic weights
+    private static final float LOST_PENALTY = 200000f;
+    private static final float MONOTONICITY_POWER = 4f;
+    private static final float MONOTONICITY_WEIGHT = 47f;
+    private static final float SUM_POWER = 3.5f;
+    private static final float SUM_WEIGHT = 11f;
+    private static final float MERGES_WEIGHT = 700f;
+    private static final float EMPTY_WEIGHT = 270f;
+
+    // Spawn branches less likely than this are scored by the heuristic instead of searched
+    private static final float PROBABILITY_CUTOFF = 0.0001f;
+
+    // Nodes between polls of the stop condition, minus one. The 4x4 search polls at chance
+    // nodes; every NxN node is expensive enough to poll.
+    private static final int BITBOARD_POLL_MASK = 63;
+    private static final int GRID_POLL_MASK = 0;
+    private static final BooleanSupplier NEVER = () -> false;
+
+    private static final int MAX_EXPONENT = 127;
+    private static final float[] SUM_POW = new float[MAX_EXPONENT + 1];
+    private static final float[] MONOTONICITY_POW = new float[MAX_EXPONENT + 1];
+    private static final float[] ROW_HEURISTIC = new float[1 << 16];
+
+    static {
+        for (int e = 0; e <= MAX_EXPONENT; e++) {
+            SUM_POW[e] = (float) Math.pow(e, SUM_POWER);
+            MONOTONICITY_POW[e] = (float) Math.pow(e, MONOTONICITY_POWER);
+        }
+        int[] line = new int[BitBoard.SIZE];
+        for (int row = 0; row < ROW_HEURISTIC.length; row++) {
+            for (int i = 0; i < BitBoard.SIZE; i++) {
+                line[i] = (row >>> (4 * i)) & 0xF;
+            }
+            ROW_HEURISTIC[row] = lineHeuristic(line, BitBoard.SIZE);
+        }
+    }
+
+    private final int depth;
+
+    // Transposition table for 4x4 chance nodes, direct mapped. A depth of 0 marks a free slot.
+    private final long[] tableKeys;
+    private final float[] tableValues;
+    private final byte[] tableDepths;
+    private final int tableMask;
+
+    // Per-level scratch boards for the NxN search
+    private Grid[] levels;
+    private int[] line;
+
+    // Stop condition of the running search and whether it has held
+    private BooleanSupplier stop = NEVER;
+    private boolean stopped;
+    private int nodes;
+
+    public ExpectimaxPlayer() {
+        this(DEFAULT_DEPTH, DEFAULT_TABLE_BITS);
+    }
+
+    /**
+     * @param depth     number of plies to look ahead, player moves and spawns both count
+     * @param tableBits log2 of the number of transposition table entries
+     */
+    public ExpectimaxPlayer(int depth, int tableBits) {
+        if (depth < 1 || depth > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Search depth out of range: " + depth);
+        }
+        if (tableBits < 1 || tableBits > 30) {
+            throw new IllegalArgumentException("Table size out of range: 2^" + tableBits);
+        }
+        this.depth = depth;
+        int entries = 1 << tableBits;
+        this.tableKeys = new long[entries];
+        this.tableValues = new float[entries];
+        this.tableDepths = new byte[entries];
+        this.tableMask = entries - 1;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public Direction chooseMove(GameEngine engine) {
+        Grid grid = engine.getGrid();
+        if (BitBoard.fits(grid)) {
+            return bestMove(BitBoard.fromGrid(grid), depth);
+        }
+        return bestMove(grid, Math.min(depth, GRID_DEPTH));
+    }
+
+    /**
+     * Best move searched to the given depth on any board, giving up once the stop condition
+     * holds. Unlike chooseMove(), grids are searched as deep as asked.
+     *
+     * @return the move, or null if no move changes the board or the search gave up
+     */
+    public Direction bestMove(Grid grid, int depth, BooleanSupplier stop) {
+        this.stop = stop;
+        this.stopped = false;
+        this.nodes = 0;
+        try {
+            Direction best = BitBoard.fits(grid) ? bestMove(BitBoard.fromGrid(grid), depth) : bestMove(grid, depth);
+            return stopped ? null : best;
+        } finally {
+            this.stop = NEVER;
+        }
+    }
+
+    /**
+     * Count a node and poll the stop condition every mask + 1 of them
+     *
+     * @return whether the search should unwind
+     */
+    private boolean stopping(int mask) {
+        if ((++nodes & mask) == 0 && stop.getAsBoolean()) {
+            stopped = true;
+        }
+        return stopped;
+    }
+
+    /**
+     * Best move for a 4x4 bitboard, or null if no move changes it
+     */
+    public Direction bestMove(long board, int depth) {
+        Direction best = null;
+        float bestValue = -1;
+        for (Direction direction : DIRECTIONS) {
+            long next = BitBoard.move(board, direction);
+            if (next == board) {
+                continue;
+            }
+            float value = chance(next, depth - 1, 1f);
+            if (value > bestValue) {
+                bestValue = value;
+                best = direction;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Expected value over every spawn on the board
+     */
+    private float chance(long board, int depth, float probability) {
+        if (depth <= 0 || probability < PROBABILITY_CUTOFF) {
+            return heuristic(board);
+        }
+        long key = BitBoard.canonical(board);
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & tableMask;
+        if (tableKeys[slot] == key && tableDepths[slot] >= depth) {
+            return tableValues[slot];
+        }
+        if (stopping(BITBOARD_POLL_MASK)) {
+            return 0;
+        }
+
+        int empty = BitBoard.emptyCount(board);
+        if (empty == 0) {
+            return heuristic(board);
+        }
+        float cellProbability = probability / empty;
+        float sum = 0;
+        long tile = 1;
+        for (int i = 0; i < BitBoard.CELLS; i++, tile <<= 4) {
+            if ((board & (tile * 0xF)) == 0) {
+                sum += 0.9f * max(board | tile, depth - 1, cellProbability * 0.9f);
+                sum += 0.1f * max(board | (tile << 1), depth - 1, cellProbability * 0.1f);
+            }
+        }
+        float value = sum / empty;
+        if (stopped) {
+            return 0;
+        }
+
+        tableKeys[slot] = key;
+        tableValues[slot] = value;
+        tableDepths[slot] = (byte) depth;
+        return value;
+    }
+
+    /**
+     * Value of the best move from the board, or 0 if the game is over
+     */
+    private float max(long board, int depth, float probability) {
+        if (depth <= 0) {
+            return heuristic(board);
+        }
+        float best = 0;
+        for (Direction direction : DIRECTIONS) {
+            long next = BitBoard.move(board, direction);
+            if (next != board) {
+                best = Math.max(best, chance(next, depth - 1, probability));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Static evaluation of a 4x4 board over its rows and columns
+     */
+    static float heuristic(long board) {
+        long transposed = BitBoard.transpose(board);
+        return ROW_HEURISTIC[(int) (board & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((board >>> 16) & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((board >>> 32) & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((board >>> 48) & 0xFFFF)]
+                + ROW_HEURISTIC[(int) (transposed & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((transposed >>> 16) & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((transposed >>> 32) & 0xFFFF)]
+                + ROW_HEURISTIC[(int) ((transposed >>> 48) & 0xFFFF)];
+    }
+
+    /**
+     * Score one line of exponents: reward empty cells and mergeable neighbours, penalise
+     * lines that are not monotonic and large tiles. The score is the same for a line and
+     * its reverse, so every symmetry of a board evaluates the same.
+     */
+    static float lineHeuristic(int[] line, int n) {
+        float sum = 0;
+        int empty = 0;
+        int merges = 0;
+        int prev = 0;
+        int counter = 0;
+        for (int i = 0; i < n; i++) {
+            int rank = line[i];
+            sum += SUM_POW[rank];
+            if (rank == 0) {
+                empty++;
+            } else {
+                if (prev == rank) {
+                    counter++;
+                } else if (counter > 0) {
+                    merges += 1 + counter;
+                    counter = 0;
+                }
+                prev = rank;
+            }
+        }
+        if (counter > 0) {
+            merges += 1 + counter;
+        }
+
+        float monotonicityLeft = 0;
+        float monotonicityRight = 0;
+        for (int i = 1; i < n; i++) {
+            if (line[i - 1] > line[i]) {
+                monotonicityLeft += MONOTONICITY_POW[line[i - 1]] - MONOTONICITY_POW[line[i]];
+            } else {
+                monotonicityRight += MONOTONICITY_POW[line[i]] - MONOTONICITY_POW[line[i - 1]];
+            }
+        }
+
+        return LOST_PENALTY + EMPTY_WEIGHT * empty + MERGES_WEIGHT * merges
+                - MONOTONICITY_WEIGHT * Math.min(monotonicityLeft, monotonicityRight)
+                - SUM_WEIGHT * sum;
+    }
+
+    /**
+     * Best move for a grid of any size, or null if no move changes it
+     */
+    public Direction bestMove(Grid grid, int depth) {
+        ensureLevels(grid.size(), depth);
+        Direction best = null;
+        float bestValue = -1;
+        Grid child = levels[depth];
+        for (Direction direction : DIRECTIONS) {
+            child.copyFrom(grid);
+            if (!child.move(direction)) {
+                continue;
+            }
+            float value = chance(child, depth - 1, 1f);
+            if (value > bestValue) {
+                bestValue = value;
+                best = direction;
+            }
+        }
+        return best;
+    }
+
+    private void ensureLevels(int size, int depth) {
+        if (levels == null || levels.length <= depth || levels[depth].size() != size) {
+            levels = new Grid[depth + 1];
+            for (int i = 1; i <= depth; i++) {
+                levels[i] = new Grid(size, 0);
+            }
+            line = new int[size];
+        }
+    }
+
+    /**
+     * Expected value over every spawn on the grid. The spawn is written into the grid
+     * and cleared again, so the grid is unchanged on return.
+     */
+    private float chance(Grid grid, int depth, float probability) {
+        if (depth <= 0 || probability < PROBABILITY_CUTOFF) {
+            return heuristic(grid);
+        }
+        if (stopping(GRID_POLL_MASK)) {
+            return 0;
+        }
+        int empty = grid.emptyCount();
+        if (empty == 0) {
+            return heuristic(grid);
+        }
+        float cellProbability = probability / empty;
+        float sum = 0;
+        for (int i = 0; i < grid.cellCount() && !stopped; i++) {
+            if (grid.get(i) == 0) {
+                grid.set(i, 1);
+                sum += 0.9f * max(grid, depth - 1, cellProbability * 0.9f);
+                grid.set(i, 2);
+                sum += 0.1f * max(grid, depth - 1, cellProbability * 0.1f);
+                grid.set(i, 0);
+            }
+        }
+        return sum / empty;
+    }
+
+    private float max(Grid grid, int depth, float probability) {
+        if (depth <= 0) {
+            return heuristic(grid);
+        }
+        if (stopping(GRID_POLL_MASK)) {
+            return 0;
+        }
+        Grid child = levels[depth];
+        float best = 0;
+        for (Direction direction : DIRECTIONS) {
+            child.copyFrom(grid);
+            if (child.move(direction)) {
+                best = Math.max(best, chance(child, depth - 1, probability));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Static evaluation of a grid over its rows and columns
+     */
+    private float heuristic(Grid grid) {
+        int size = grid.size();
+        float total = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                line[j] = grid.get(i * size + j);
+            }
+            total += lineHeuristic(line, size);
+            for (int j = 0; j < size; j++) {
+                line[j] = grid.get(j * size + i);
+            }
+            total += lineHeuristic(line, size);
+        }
+        return total;
+    }
+}
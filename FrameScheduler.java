@@ -0,0 +1,110 @@
+import javax.swing.Timer;
+
+/**
+ * Fixed-timestep clock for one animation at a time, driven from the Swing event thread.
+ *
+ * The animation advances in whole steps of STEP_NANOS however unevenly the timer fires,
+ * and progress() interpolates between the last two steps for drawing. Starting a new
+ * animation while one is running drops the rest of the old one, so a burst of key repeats
+ * never queues up animations behind the input.
+ *
+ * The times between drawn frames are kept for the last FRAME_HISTORY frames, so their
+ * percentiles can be shown while the game runs.
+ */
+public class FrameScheduler {
+    public static final long STEP_NANOS = 1_000_000_000L / 120;
+    // Most time one tick may catch up on, so a stall does not turn into a burst of steps
+    private static final long MAX_CATCH_UP_NANOS = 250_000_000L;
+    private static final int TIMER_DELAY = 1000 / 120; // Milliseconds between ticks
+    private static final int FRAME_HISTORY = 256;
+
+    private final Timer timer;
+    private final Runnable onFrame;
+
+    private int steps; // Steps taken in the current animation
+    private int totalSteps;
+    private long accumulator; // Time not yet turned into steps
+    private long lastTick;
+
+    private final RecentTimes frameTimes = new RecentTimes(FRAME_HISTORY);
+    private long lastFrame; // When the previous frame of this animation was drawn, or 0
+
+    /**
+     * @param onFrame called on the event thread after every tick, to repaint
+     */
+    public FrameScheduler(Runnable onFrame) {
+        this.onFrame = onFrame;
+        this.timer = new Timer(TIMER_DELAY, e -> tick());
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Start an animation of the given length, replacing the running one
+     */
+    public void start(long durationNanos) {
+        steps = 0;
+        totalSteps = (int) Math.max(1, durationNanos / STEP_NANOS);
+        accumulator = 0;
+        lastTick = System.nanoTime();
+        lastFrame = 0;
+        timer.restart();
+    }
+
+    /**
+     * Drop the running animation, e.g. when the board jumps to another state
+     */
+    public void stop() {
+        timer.stop();
+        steps = totalSteps;
+    }
+
+    public boolean isRunning() {
+        return timer.isRunning();
+    }
+
+    /**
+     * Progress of the running animation from 0 to 1, interpolated between the previous
+     * and the latest step
+     */
+    public double progress() {
+        if (!isRunning()) {
+            return 1;
+        }
+        double alpha = (double) accumulator / STEP_NANOS;
+        return Math.max(0, Math.min(1, (steps - 1 + alpha) / totalSteps));
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        accumulator += Math.min(now - lastTick, MAX_CATCH_UP_NANOS);
+        lastTick = now;
+        while (accumulator >= STEP_NANOS && steps < totalSteps) {
+            steps++;
+            accumulator -= STEP_NANOS;
+        }
+        if (steps >= totalSteps) {
+            timer.stop();
+        }
+        onFrame.run();
+    }
+
+    /**
+     * Note that a frame of the running animation was drawn
+     */
+    public void frameDrawn() {
+        long now = System.nanoTime();
+        if (lastFrame != 0) {
+            frameTimes.add(now - lastFrame);
+        }
+        lastFrame = isRunning() ? now : 0;
+    }
+
+    /**
+     * Percentile of the recent times between frames in milliseconds, or 0 before any
+     *
+     * @param p percentile between 0 and 100
+     */
+    public double frameTimeMillis(double p) {
+        return frameTimes.percentileMillis(p);
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Game rules without any AWT or Swing dependency.
+ *
+ * Owns the board, the score, the win/lose flags and the Undo history. Java2048 draws
+ * on top of it, and headless code can create and step games directly.
+ *
+ * Spawns come from the game's own GameRandom, one value per tile, so a seed plus the list
+ * of moves reproduces a game exactly, Undo included.
+ */
+public class GameEngine {
+    private final int gridSize;
+    private final int targetScore; // Winning score
+    private final boolean undoEnabled;
+
+    private Grid myGrid;
+    private boolean myWin = false;
+    private boolean myLose = false;
+    private int myScore = 0;
+    private final GameRandom myRandom = new GameRandom(0); // Draws one value per spawned tile
+    private int myMoves; // Moves played on the current line of play
+    private ReplayWriter myRecorder;
+
+    // Snapshots of previous moves for Undo and Redo functionality
+    private final int undoDepth;
+    private final long undoMemoryBytes;
+    private Timeline myTimeline;
+    // False once applyMove() or spawn() changed the board outside the timeline
+    private boolean mySynced = true;
+
+    public GameEngine(int gridSize, int targetScore, boolean undoEnabled) {
+        this(gridSize, targetScore, undoEnabled, Timeline.DEFAULT_DEPTH, Timeline.DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * @param undoDepth       most moves that can be undone
+     * @param undoMemoryBytes cap on the memory held for Undo
+     */
+    public GameEngine(int gridSize, int targetScore, boolean undoEnabled, int undoDepth, long undoMemoryBytes) {
+        this.gridSize = gridSize;
+        this.targetScore = targetScore;
+        this.undoEnabled = undoEnabled;
+        this.undoDepth = undoDepth;
+        this.undoMemoryBytes = undoMemoryBytes;
+        resetGame();
+    }
+
+    /**
+     * Reset the game to initial state with a fresh seed
+     */
+    public void resetGame() {
+        resetGame(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Reset the game to initial state. The same seed and the same moves always give the
+     * same game. Stops recording.
+     */
+    public void resetGame(long seed) {
+        myScore = 0;
+        myWin = false;
+        myLose = false;
+        myRandom.setSeed(seed);
+        myMoves = 0;
+        myRecorder = null;
+        myGrid = new Grid(gridSize, targetScore);
+        addTile();
+        addTile();
+        if (undoEnabled) {
+            myTimeline = new Timeline(myGrid, myRandom.getPosition(), undoDepth, undoMemoryBytes);
+        }
+        mySynced = true;
+    }
+
+    /**
+     * Record this game from now on. Call right after resetGame(); the replay ends at the
+     * next reset or when the caller finishes it. Moves made through applyMove() and
+     * spawn() are not recorded.
+     */
+    public ReplayWriter startRecording(OutputStream out) {
+        if (myMoves != 0 || !mySynced) {
+            throw new IllegalStateException("Recording must start right after resetGame()");
+        }
+        myRecorder = new ReplayWriter(out, gridSize, targetScore, myRandom.getSeed(), undoEnabled ? undoDepth : 0);
+        return myRecorder;
+    }
+
+    /**
+     * Play one turn: slide and merge, then spawn a tile and save the Undo state if the
+     * board changed
+     *
+     * @return true if the board changed
+     */
+    public boolean step(Direction direction) {
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        boolean win = myWin;
+        boolean lose = myLose;
+        if (!move(direction)) {
+            return false;
+        }
+        addTile();
+        myMoves++;
+        if (undoEnabled) {
+            myTimeline.push(myGrid, direction, myScore, myRandom.getPosition(), myWin, myLose, win, lose);
+            mySynced = true;
+        }
+        if (myRecorder != null) {
+            myRecorder.moved(direction);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.moved(undoSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return true;
+    }
+
+    /**
+     * Slide and merge in the specified direction and update score and win flag.
+     * No tile is spawned and no Undo state is saved.
+     *
+     * @return true if the board changed
+     */
+    public boolean applyMove(Direction direction) {
+        mySynced = false;
+        return move(direction);
+    }
+
+    private boolean move(Direction direction) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        boolean moved = myGrid.move(direction);
+        if (Metrics.ENABLED) {
+            Metrics.MOVE[direction.ordinal()].record(System.nanoTime() - start);
+        }
+        if (!moved) {
+            return false;
+        }
+        myScore += myGrid.getLastScore();
+        if (myGrid.lastHitTarget()) {
+            myWin = true;
+        }
+        return true;
+    }
+
+    /**
+     * Add a new tile to a random empty position
+     *
+     * @return false if the board was full
+     */
+    public boolean spawn() {
+        mySynced = false;
+        return addTile();
+    }
+
+    private boolean addTile() {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        int available = availableSpace();
+        if (available > 0) {
+            // High half picks the cell, low half makes a 4 one time in ten
+            long bits = myRandom.nextLong();
+            int index = (int) (((bits >>> 32) * available) >>> 32);
+            boolean four = ((bits & 0xFFFFFFFFL) * 10 >>> 32) == 0;
+            myGrid.set(myGrid.nthEmpty(index), four ? 2 : 1);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.ADD_TILE.record(System.nanoTime() - start);
+        }
+        return available > 0;
+    }
+
+    /**
+     * Count the empty tiles
+     */
+    public int availableSpace() {
+        return myGrid.emptyCount();
+    }
+
+    /**
+     * Check if the player can make any move
+     */
+    public boolean canMove() {
+        if (!Metrics.ENABLED) {
+            return myGrid.canMove();
+        }
+        long start = System.nanoTime();
+        boolean canMove = myGrid.canMove();
+        Metrics.CAN_MOVE.record(System.nanoTime() - start);
+        return canMove;
+    }
+
+    /**
+     * Check if a move in the given direction would change the board
+     */
+    public boolean isLegal(Direction direction) {
+        return myGrid.isLegal(direction);
+    }
+
+    /**
+     * Directions that would change the board, bit d set for the direction with ordinal d
+     */
+    public int legalMoves() {
+        return myGrid.legalMoves();
+    }
+
+    /**
+     * Check if the game is over because no move is left
+     */
+    public boolean isTerminal() {
+        return !canMove();
+    }
+
+    /**
+     * Mark the game as lost if no move is left
+     *
+     * @return the lose flag
+     */
+    public boolean checkLose() {
+        if (!canMove()) {
+            myLose = true;
+        }
+        return myLose;
+    }
+
+    /**
+     * Perform the Undo action
+     *
+     * @return false if there was nothing to undo
+     */
+    public boolean performUndo() {
+        if (!undoEnabled) {
+            return false;
+        }
+        Timeline.Snapshot undone = myTimeline.undo();
+        if (undone == null) {
+            return false;
+        }
+        show(undone, myTimeline.getCurrent());
+        myWin = undone.wasWin();
+        myLose = undone.wasLose();
+        if (Metrics.ENABLED) {
+            Metrics.undoChanged(undoSize());
+        }
+        if (myRecorder != null) {
+            myRecorder.undone();
+        }
+        return true;
+    }
+
+    /**
+     * Perform the Redo action along the current branch
+     *
+     * @return false if there was nothing to redo
+     */
+    public boolean performRedo() {
+        if (!undoEnabled) {
+            return false;
+        }
+        Timeline.Snapshot shown = myTimeline.getCurrent();
+        Timeline.Snapshot redone = myTimeline.redo();
+        if (redone == null) {
+            return false;
+        }
+        show(shown, redone);
+        myWin = redone.isWin();
+        myLose = redone.isLose();
+        if (Metrics.ENABLED) {
+            Metrics.undoChanged(undoSize());
+        }
+        if (myRecorder != null) {
+            myRecorder.moved(redone.getMove());
+        }
+        return true;
+    }
+
+    /**
+     * Switch Redo to the next branch played from the current position
+     *
+     * @return false if no move was ever played from here
+     */
+    public boolean nextBranch() {
+        return undoEnabled && myTimeline.nextBranch() != null;
+    }
+
+    /**
+     * Go back or forward to any snapshot of this game. Playing on from there starts a new
+     * branch and keeps the old one for Redo.
+     */
+    public void restore(Timeline.Snapshot snapshot) {
+        if (!undoEnabled) {
+            throw new IllegalStateException("Undo is disabled");
+        }
+        Timeline.Snapshot shown = myTimeline.getCurrent();
+        myTimeline.jumpTo(snapshot);
+        if (myRecorder != null) {
+            recordPath(shown, snapshot);
+        }
+        show(shown, snapshot);
+        myWin = snapshot.isWin();
+        myLose = snapshot.isLose();
+    }
+
+    /**
+     * Record a jump as undos back to the common ancestor and moves down to the target
+     */
+    private void recordPath(Timeline.Snapshot from, Timeline.Snapshot to) {
+        ArrayDeque<Direction> forward = new ArrayDeque<>();
+        while (from != to) {
+            if (from.getPly() >= to.getPly()) {
+                myRecorder.undone();
+                from = from.getParent();
+            } else {
+                forward.push(to.getMove());
+                to = to.getParent();
+            }
+        }
+        for (Direction direction : forward) {
+            myRecorder.moved(direction);
+        }
+    }
+
+    /**
+     * Put the timeline's current snapshot on the board, rewriting only the cells changed
+     * between it and the snapshot the board holds now
+     */
+    private void show(Timeline.Snapshot shown, Timeline.Snapshot next) {
+        myTimeline.copyTo(myGrid, mySynced ? shown : null);
+        myScore = next.getScore();
+        myRandom.setPosition(next.getSpawns());
+        myMoves = next.getPly();
+        mySynced = true;
+    }
+
+    /**
+     * Write the whole game, settings and Undo history included, for load(). The live
+     * board is written apart from the history since applyMove() and spawn() can change it
+     * on their own.
+     *
+     * Format, big-endian: int grid size, int target score, boolean undo enabled, int undo
+     * depth, long undo memory, long seed, long spawns, int score, int moves, boolean win,
+     * boolean lose, size * size bytes of exponents, row-major, then Timeline.write() if
+     * Undo is enabled.
+     */
+    public void save(DataOutput out) throws IOException {
+        freeze().write(out);
+    }
+
+    /**
+     * Take the game as it is now, to save on another thread while this one plays on
+     */
+    public Frozen freeze() {
+        byte[] cells = new byte[gridSize * gridSize];
+        myGrid.copyTo(cells);
+        return new Frozen(this, cells, undoEnabled ? myTimeline.freeze() : null);
+    }
+
+    /**
+     * A game as it was when freeze() was called, which can be written from any thread
+     */
+    public static final class Frozen {
+        private final int gridSize;
+        private final int targetScore;
+        private final boolean undoEnabled;
+        private final int undoDepth;
+        private final long undoMemoryBytes;
+        private final long seed;
+        private final long spawns;
+        private final int score;
+        private final int moves;
+        private final boolean win;
+        private final boolean lose;
+        private final byte[] cells;
+        private final Timeline.Frozen history; // Null if Undo is disabled
+
+        private Frozen(GameEngine engine, byte[] cells, Timeline.Frozen history) {
+            this.gridSize = engine.gridSize;
+            this.targetScore = engine.targetScore;
+            this.undoEnabled = engine.undoEnabled;
+            this.undoDepth = engine.undoDepth;
+            this.undoMemoryBytes = engine.undoMemoryBytes;
+            this.seed = engine.myRandom.getSeed();
+            this.spawns = engine.myRandom.getPosition();
+            this.score = engine.myScore;
+            this.moves = engine.myMoves;
+            this.win = engine.myWin;
+            this.lose = engine.myLose;
+            this.cells = cells;
+            this.history = history;
+        }
+
+        /**
+         * Write the game in the format of save()
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(gridSize);
+            out.writeInt(targetScore);
+            out.writeBoolean(undoEnabled);
+            out.writeInt(undoDepth);
+            out.writeLong(undoMemoryBytes);
+            out.writeLong(seed);
+            out.writeLong(spawns);
+            out.writeInt(score);
+            out.writeInt(moves);
+            out.writeBoolean(win);
+            out.writeBoolean(lose);
+            out.write(cells);
+            if (history != null) {
+                history.write(out);
+            }
+        }
+    }
+
+    /**
+     * Read a game written by save(). Nothing is recorded until the next reset.
+     *
+     * @throws IOException if the data is damaged
+     */
+    public static GameEngine load(DataInput in) throws IOException {
+        int gridSize = in.readInt();
+        int targetScore = in.readInt();
+        boolean undoEnabled = in.readBoolean();
+        int undoDepth = in.readInt();
+        long undoMemoryBytes = in.readLong();
+        if (gridSize < 2 || targetScore <= 0 || undoDepth < 1) {
+            throw new IOException("Bad game settings");
+        }
+        GameEngine engine = new GameEngine(gridSize, targetScore, undoEnabled, undoDepth, undoMemoryBytes);
+        engine.myRandom.setSeed(in.readLong());
+        engine.myRandom.setPosition(in.readLong());
+        engine.myScore = in.readInt();
+        engine.myMoves = in.readInt();
+        engine.myWin = in.readBoolean();
+        engine.myLose = in.readBoolean();
+        byte[] cells = new byte[gridSize * gridSize];
+        in.readFully(cells);
+        for (byte e : cells) {
+            if (e < 0) {
+                throw new IOException("Bad exponent " + e);
+            }
+        }
+        engine.myGrid.copyFrom(cells);
+        if (undoEnabled) {
+            engine.myTimeline = Timeline.read(in, gridSize, undoDepth, undoMemoryBytes);
+        }
+        // The board need not match the current snapshot, so the next Undo rewrites it whole
+        engine.mySynced = false;
+        return engine;
+    }
+
+    /**
+     * Number of moves that can be undone
+     */
+    public int undoSize() {
+        return undoEnabled ? myTimeline.undoDepth() : 0;
+    }
+
+    /**
+     * The Undo and Redo history, or null if Undo is disabled. Replaced by resetGame().
+     */
+    public Timeline getTimeline() {
+        return myTimeline;
+    }
+
+    /**
+     * Clear the win flag so the player can keep going past the target
+     */
+    public void continuePlaying() {
+        myWin = false;
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    public int getTargetScore() {
+        return targetScore;
+    }
+
+    public boolean isUndoEnabled() {
+        return undoEnabled;
+    }
+
+    public int getScore() {
+        return myScore;
+    }
+
+    public long getSeed() {
+        return myRandom.getSeed();
+    }
+
+    /**
+     * Moves played from the start of the game to the current position
+     */
+    public int getMoves() {
+        return myMoves;
+    }
+
+    public boolean isWin() {
+        return myWin;
+    }
+
+    public boolean isLose() {
+        return myLose;
+    }
+
+    /**
+     * Get the tile value at the specified position
+     */
+    public int valueAt(int x, int y) {
+        return myGrid.valueAt(x, y);
+    }
+
+    /**
+     * Get the exponent at the specified position
+     */
+    public int exponentAt(int x, int y) {
+        return myGrid.exponentAt(x, y);
+    }
+
+    /**
+     * The live board. Callers must not keep it across resetGame().
+     */
+    public Grid getGrid() {
+        return myGrid;
+    }
+}
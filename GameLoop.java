@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a GameEngine on its own thread, fed by a bounded queue of commands.
+ *
+ * The UI posts commands from a single thread and never touches the engine, so a slow move
+ * or AI search on a large board cannot hold up painting. After each command the loop
+ * publishes an immutable BoardSnapshot, which the UI reads whenever it likes.
+ *
+ * The queue is a lock-free ring of QUEUE_CAPACITY commands with one producer and one
+ * consumer; the engine thread parks while it is empty. A command that finds the queue
+ * full is dropped, and key repeats can be dropped sooner according to a RepeatPolicy, so
+ * holding a key down never queues up moves the player has to wait through.
+ *
+ * Given a save file, the loop keeps the game saved through an AutoSave, journaling each
+ * command after it has run, and a loop made from AutoSave.load() goes on from there.
+ */
+public final class GameLoop {
+    public static final int QUEUE_CAPACITY = 64;
+
+    public enum Command {
+        LEFT(Direction.LEFT), RIGHT(Direction.RIGHT), UP(Direction.UP), DOWN(Direction.DOWN),
+        UNDO(null), REDO(null), BRANCH(null), AI(null), CONTINUE(null), RESET(null);
+
+        private final Direction direction;
+
+        Command(Direction direction) {
+            this.direction = direction;
+        }
+
+        static Command of(Direction direction) {
+            for (Command command : COMMANDS) {
+                if (command.direction == direction) {
+                    return command;
+                }
+            }
+            throw new IllegalArgumentException("No command for " + direction);
+        }
+    }
+
+    /**
+     * What to do with a key repeat while earlier commands are still waiting
+     */
+    public enum RepeatPolicy {
+        QUEUE, // Queue it like any other command
+        COALESCE, // Drop it if the same command is already waiting to run
+        DROP // Drop it unless the engine is idle with nothing waiting
+    }
+
+    private static final Command[] COMMANDS = Command.values();
+
+    // Player behind the AI command, by BatchRunner.playerFactory() name; set with
+    // -Dgame.player=expectimax|ntuple|montecarlo|random
+    private static final String PLAYER = System.getProperty("game.player", "expectimax");
+
+    private final GameEngine engine;
+    private final RepeatPolicy policy;
+    private final Runnable onUpdate;
+    private final Thread thread;
+
+    // The ring: slot i % QUEUE_CAPACITY holds command i and the time it was posted
+    private final byte[] commands = new byte[QUEUE_CAPACITY];
+    private final long[] postedNanos = new long[QUEUE_CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // Next command to run; engine thread only
+    private final AtomicLong tail = new AtomicLong(); // Next free slot; posting thread only
+    private volatile boolean busy; // Set from taking a command until it has run
+    private volatile boolean stopping;
+    private int dropped; // Posting thread only
+
+    // Engine thread only, after the constructor
+    private Player player; // AI for the AI command, created on first use
+    private final Path replayDir; // Where every game is recorded, or null
+    private ReplayWriter replay; // Recording of the current game
+    private int game; // Games started before the current one
+    private byte[] published; // Cells of the latest snapshot
+    private byte[] scratch;
+    private final AutoSave autosave; // Or null
+
+    private volatile BoardSnapshot snapshot;
+
+    /**
+     * @param replayDir directory to record a replay of every game into, or null
+     * @param onUpdate  called on the engine thread after each new snapshot
+     */
+    public GameLoop(int gridSize, int targetScore, boolean undoEnabled, Path replayDir,
+                    RepeatPolicy policy, Runnable onUpdate) {
+        this(gridSize, targetScore, undoEnabled, replayDir, null, policy, onUpdate);
+    }
+
+    /**
+     * @param saveFile file to keep the game saved in, replacing any game saved there once
+     *                 the loop starts, or null
+     */
+    public GameLoop(int gridSize, int targetScore, boolean undoEnabled, Path replayDir, Path saveFile,
+                    RepeatPolicy policy, Runnable onUpdate) {
+        this(new GameEngine(gridSize, targetScore, undoEnabled), null, replayDir, saveFile, policy, onUpdate);
+    }
+
+    /**
+     * Go on with a saved game. The saved game is not recorded as a replay; games started
+     * after it are.
+     */
+    public GameLoop(AutoSave.Saved saved, Path replayDir, Path saveFile, RepeatPolicy policy, Runnable onUpdate) {
+        this(saved.getEngine(), saved.getJournal(), replayDir, saveFile, policy, onUpdate);
+    }
+
+    /**
+     * @param journal commands to bring a saved engine up to date, or null for a new game
+     */
+    private GameLoop(GameEngine engine, List<Command> journal, Path replayDir, Path saveFile,
+                     RepeatPolicy policy, Runnable onUpdate) {
+        this.engine = engine;
+        this.replayDir = replayDir;
+        this.policy = policy;
+        this.onUpdate = onUpdate;
+        this.scratch = new byte[engine.getGridSize() * engine.getGridSize()];
+        if (journal == null) {
+            startReplay();
+        } else {
+            for (Command command : journal) {
+                perform(command);
+            }
+        }
+        publish(null, System.nanoTime());
+        this.autosave = saveFile != null ? new AutoSave(saveFile) : null;
+        this.thread = new Thread(this::run, "game-engine");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * The board after the latest command
+     */
+    public BoardSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Queue a command. Must always be called from the same thread, normally the event
+     * dispatch thread.
+     *
+     * @param repeat whether this is an automatic repeat, of a held key or of autoplay
+     * @return false if the command was dropped
+     */
+    public boolean post(Command command, boolean repeat) {
+        long t = tail.get();
+        long h = head.get();
+        boolean drop = t - h == QUEUE_CAPACITY;
+        if (repeat) {
+            switch (policy) {
+                case COALESCE:
+                    drop |= t > h && commands[(int) ((t - 1) % QUEUE_CAPACITY)] == command.ordinal();
+                    break;
+                case DROP:
+                    // busy is set before head moves on, so a command is always seen one way or the other
+                    drop |= t > h || busy;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (drop) {
+            dropped++;
+            return false;
+        }
+        int slot = (int) (t % QUEUE_CAPACITY);
+        commands[slot] = (byte) command.ordinal();
+        postedNanos[slot] = System.nanoTime();
+        tail.set(t + 1);
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Commands dropped so far because of the queue limit or the repeat policy; read on
+     * the posting thread
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Let the engine thread finish the command it is running, write out the current
+     * replay and save the game, and stop, waiting until it has. Commands still queued are
+     * dropped.
+     */
+    public void shutdown() {
+        if (thread.getState() == Thread.State.NEW) {
+            closeReplay();
+            closeAutoSave();
+            return;
+        }
+        stopping = true;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        if (autosave != null) {
+            // Start the journal from this game
+            autosave.checkpoint(engine);
+        }
+        while (!stopping) {
+            long h = head.get();
+            if (h == tail.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+            int slot = (int) (h % QUEUE_CAPACITY);
+            Command command = COMMANDS[commands[slot]];
+            long posted = postedNanos[slot];
+            busy = true;
+            head.set(h + 1);
+            try {
+                execute(command, posted);
+            } catch (RuntimeException e) {
+                // Keep the game going; the board is still consistent
+                e.printStackTrace();
+            } finally {
+                busy = false;
+            }
+        }
+        closeReplay();
+        closeAutoSave();
+    }
+
+    /**
+     * Run one command against the engine, publish the result and save it
+     */
+    private void execute(Command command, long posted) {
+        if (command == Command.AI) {
+            // Journal the move the AI chose rather than searching again on resume
+            command = chooseMove();
+        } else if (command == Command.RESET) {
+            finishReplay();
+            engine.resetGame();
+            game++;
+            startReplay();
+        }
+        Direction moved = perform(command);
+        publish(moved, posted);
+        onUpdate.run();
+        if (autosave != null) {
+            if (command == Command.RESET) {
+                autosave.checkpoint(engine);
+            } else if (command != null) {
+                autosave.logged(command, engine);
+            }
+        }
+    }
+
+    /**
+     * The AI's move as a command, or null if the game is over
+     */
+    private Command chooseMove() {
+        if (engine.checkLose()) {
+            return null;
+        }
+        if (player == null) {
+            player = newPlayer();
+        }
+        Direction direction = player.chooseMove(engine);
+        return direction != null ? Command.of(direction) : null;
+    }
+
+    /**
+     * The player named by -Dgame.player, or expectimax if it cannot be made
+     */
+    private static Player newPlayer() {
+        try {
+            return BatchRunner.playerFactory(PLAYER).get();
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            System.err.println("Cannot use the " + PLAYER + " player, using expectimax: " + e.getMessage());
+            return new ExpectimaxPlayer();
+        }
+    }
+
+    /**
+     * Apply a command to the engine, after any reset; the same on a journaled command when
+     * the game is resumed as when it was first played
+     *
+     * @param command a command other than AI, or null to only check for a loss
+     * @return the direction moved, or null if the board did not move
+     */
+    private Direction perform(Command command) {
+        if (command == Command.CONTINUE) {
+            engine.continuePlaying();
+        }
+        engine.checkLose();
+
+        Direction moved = null;
+        if (command != null && !engine.isLose()) {
+            switch (command) {
+                case UNDO:
+                    engine.performUndo();
+                    break;
+                case REDO:
+                    engine.performRedo();
+                    break;
+                case BRANCH:
+                    engine.nextBranch();
+                    break;
+                default:
+                    break;
+            }
+            if (command.direction != null && engine.step(command.direction)) {
+                moved = command.direction;
+            }
+        }
+
+        if (!engine.isWin()) {
+            engine.checkLose();
+        }
+        return moved;
+    }
+
+    /**
+     * Publish the engine's state, sharing the previous cells if the board did not change
+     */
+    private void publish(Direction moved, long posted) {
+        byte[] before = published;
+        engine.getGrid().copyTo(scratch);
+        if (!Arrays.equals(scratch, before)) {
+            published = scratch;
+            scratch = new byte[scratch.length];
+        }
+        snapshot = new BoardSnapshot(engine.getGridSize(), published, moved != null ? before : null, moved,
+                engine.getScore(), engine.isWin(), engine.isLose(), game, posted);
+    }
+
+    /**
+     * Start recording the game that was just reset, if recording is on
+     */
+    private void startReplay() {
+        if (replayDir == null) {
+            return;
+        }
+        int size = engine.getGridSize();
+        String name = String.format("%dx%d-%016x.replay", size, size, engine.getSeed());
+        try {
+            replay = engine.startRecording(Files.newOutputStream(replayDir.resolve(name)));
+        } catch (IOException e) {
+            System.err.println("Cannot record replay: " + e);
+        }
+    }
+
+    /**
+     * Hand the rest of the current replay to the writer thread without waiting for it
+     */
+    private void finishReplay() {
+        if (replay != null) {
+            replay.finish();
+            replay = null;
+        }
+    }
+
+    /**
+     * Save the whole game and wait until it is on disk
+     */
+    private void closeAutoSave() {
+        if (autosave != null) {
+            autosave.checkpoint(engine);
+            try {
+                autosave.close();
+            } catch (IOException e) {
+                System.err.println("Cannot save game: " + e);
+            }
+        }
+    }
+
+    /**
+     * Finish the current replay and wait until it is written
+     */
+    private void closeReplay() {
+        if (replay != null) {
+            try {
+                replay.close();
+            } catch (IOException e) {
+                System.err.println("Cannot write replay: " + e);
+            }
+            replay = null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Seedable, splittable random source for one game.
+ *
+ * This is the SplitMix64 generator that SplittableRandom uses, with the position in the
+ * stream exposed: value n is a pure function of the seed and n. Undo can rewind the
+ * generator to where it was, and a replay only needs the seed. Every game owns its
+ * generator, so parallel games never share one.
+ */
+public final class GameRandom {
+    // Odd constant for stepping through the stream, as in SplittableRandom
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed;
+    private long position; // Values drawn since the seed was set
+
+    public GameRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * Start the stream over from a new seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.position = 0;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Number of values drawn since the seed was set
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Rewind or skip ahead; the next value is the one that followed the given position
+     */
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public long nextLong() {
+        return mix(seed + ++position * GOLDEN_GAMMA);
+    }
+
+    /**
+     * Uniform int in [0, bound), from the high half of one value
+     */
+    public int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * New generator with a seed drawn from this one, for handing to another game or thread
+     */
+    public GameRandom split() {
+        return new GameRandom(nextLong());
+    }
+
+    /**
+     * SplitMix64 finalizer
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local TCP server that hosts many independent games, one virtual thread per connection.
+ *
+ * Every connection is a session with its own GameEngine, so bots play exactly the game
+ * Java2048 shows. The protocol is ASCII, one line per command and one line per reply.
+ * The server opens with
+ *
+ *   GAME size targetScore
+ *   BOARD score state e0 e1 ... e(size*size-1)
+ *
+ * giving the exponent of every cell, row-major, 0 for empty; state is play, win or lose.
+ * Commands, case-insensitive:
+ *
+ *   LEFT, RIGHT, UP, DOWN or L, R, U, D   play a move
+ *   UNDO                                  take back the last move
+ *   CONTINUE                              keep playing after reaching the target
+ *   NEW [seed]                            start a new game
+ *   BOARD                                 send the whole board again
+ *   QUIT                                  close the session
+ *
+ * A move, UNDO or CONTINUE is answered with the cells that changed since the last board or
+ * diff sent, as "DIFF score state count index exponent ...", with count 0 if the move did
+ * not change the board. Anything else wrong is answered with "ERR reason".
+ *
+ * Memory per session is bounded: lines are cut off at MAX_LINE bytes, Undo keeps at most
+ * the configured bytes of history, and the other buffers only grow with the board. The
+ * number of sessions is capped as well; connections past the cap are told so and closed.
+ *
+ * Usage: java GameServer [port] [gridSize] [targetScore] [maxSessions] [undoKiB]
+ */
+public class GameServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 2048;
+    public static final int MAX_LINE = 256;
+    // Sessions silent for this long are closed
+    private static final int IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final int BACKLOG = 1024;
+
+    private final ServerSocket server;
+    private final int gridSize;
+    private final int targetScore;
+    private final long undoMemoryBytes; // 0 for no Undo
+    private final Semaphore slots; // One permit per session still allowed
+    private final AtomicLong sessionIds = new AtomicLong();
+
+    /**
+     * Listen on the loopback interface
+     *
+     * @param port            0 for any free port
+     * @param undoMemoryBytes cap on each session's Undo history, 0 to disable Undo
+     */
+    public GameServer(int port, int gridSize, int targetScore, int maxSessions, long undoMemoryBytes) throws IOException {
+        if (gridSize < 2) {
+            throw new IllegalArgumentException("Grid size must be at least 2: " + gridSize);
+        }
+        this.server = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+        this.gridSize = gridSize;
+        this.targetScore = targetScore;
+        this.undoMemoryBytes = undoMemoryBytes;
+        this.slots = new Semaphore(maxSessions);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the server is closed, starting a virtual thread for each
+     */
+    public void serve() throws IOException {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            if (!slots.tryAcquire()) {
+                reject(socket);
+                continue;
+            }
+            Session session = new Session(socket);
+            Thread.ofVirtual().name("session-" + sessionIds.incrementAndGet()).start(() -> {
+                try {
+                    session.run();
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (socket) {
+            socket.getOutputStream().write("ERR server full\n".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * Stop accepting connections; sessions already open run until their clients leave
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * One connection and the game it plays. Runs on its own virtual thread.
+     */
+    private final class Session {
+        private final Socket socket;
+        private final GameEngine engine;
+        private final byte[] shown; // Cells as the client last saw them
+        private final byte[] cells;
+        private final StringBuilder line = new StringBuilder(MAX_LINE);
+        private final StringBuilder reply = new StringBuilder();
+        private InputStream in;
+        private OutputStream out;
+
+        Session(Socket socket) {
+            this.socket = socket;
+            this.engine = new GameEngine(gridSize, targetScore, undoMemoryBytes > 0,
+                    Timeline.DEFAULT_DEPTH, undoMemoryBytes);
+            this.shown = new byte[gridSize * gridSize];
+            this.cells = new byte[gridSize * gridSize];
+        }
+
+        void run() {
+            try (socket) {
+                socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), MAX_LINE);
+                out = socket.getOutputStream();
+                reply.append("GAME ").append(gridSize).append(' ').append(targetScore).append('\n');
+                sendBoard();
+                while (readLine()) {
+                    if (!handle(line.toString().trim())) {
+                        break;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Idle too long
+            } catch (IOException e) {
+                // Connection dropped or the client broke the protocol; either way it ends here
+            }
+        }
+
+        /**
+         * Read the next line into line
+         *
+         * @return false at the end of the stream
+         * @throws IOException if the line is longer than MAX_LINE
+         */
+        private boolean readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                int c = in.read();
+                if (c < 0) {
+                    return line.length() > 0;
+                }
+                if (c == '\n') {
+                    return true;
+                }
+                if (line.length() == MAX_LINE) {
+                    send("ERR line too long");
+                    throw new IOException("Line too long");
+                }
+                line.append((char) c);
+            }
+        }
+
+        /**
+         * Carry out one command and answer it
+         *
+         * @return false when the session should end
+         */
+        private boolean handle(String command) throws IOException {
+            String[] words = command.split("\\s+");
+            switch (words[0].toUpperCase(Locale.ROOT)) {
+                case "L":
+                case "LEFT":
+                    move(Direction.LEFT);
+                    return true;
+                case "R":
+                case "RIGHT":
+                    move(Direction.RIGHT);
+                    return true;
+                case "U":
+                case "UP":
+                    move(Direction.UP);
+                    return true;
+                case "D":
+                case "DOWN":
+                    move(Direction.DOWN);
+                    return true;
+                case "UNDO":
+                    if (engine.performUndo()) {
+                        sendDiff();
+                    } else {
+                        send("ERR nothing to undo");
+                    }
+                    return true;
+                case "CONTINUE":
+                    engine.continuePlaying();
+                    sendDiff();
+                    return true;
+                case "NEW":
+                    if (words.length > 1) {
+                        try {
+                            engine.resetGame(Long.parseLong(words[1]));
+                        } catch (NumberFormatException e) {
+                            send("ERR bad seed: " + words[1]);
+                            return true;
+                        }
+                    } else {
+                        engine.resetGame(ThreadLocalRandom.current().nextLong());
+                    }
+                    sendBoard();
+                    return true;
+                case "BOARD":
+                    sendBoard();
+                    return true;
+                case "QUIT":
+                    send("BYE");
+                    return false;
+                case "":
+                    return true;
+                default:
+                    send("ERR unknown command: " + words[0]);
+                    return true;
+            }
+        }
+
+        private void move(Direction direction) throws IOException {
+            if (engine.step(direction)) {
+                engine.checkLose();
+            }
+            sendDiff();
+        }
+
+        private String state() {
+            return engine.isLose() ? "lose" : engine.isWin() ? "win" : "play";
+        }
+
+        private void sendBoard() throws IOException {
+            engine.getGrid().copyTo(shown);
+            reply.append("BOARD ").append(engine.getScore()).append(' ').append(state());
+            for (byte e : shown) {
+                reply.append(' ').append(e);
+            }
+            flush();
+        }
+
+        /**
+         * Send the cells that differ from what the client last saw
+         */
+        private void sendDiff() throws IOException {
+            engine.getGrid().copyTo(cells);
+            int count = 0;
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != shown[i]) {
+                    count++;
+                }
+            }
+            reply.append("DIFF ").append(engine.getScore()).append(' ').append(state()).append(' ').append(count);
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != shown[i]) {
+                    reply.append(' ').append(i).append(' ').append(cells[i]);
+                    shown[i] = cells[i];
+                }
+            }
+            flush();
+        }
+
+        private void send(String message) throws IOException {
+            reply.append(message);
+            flush();
+        }
+
+        /**
+         * Write out the reply built so far as one line
+         */
+        private void flush() throws IOException {
+            reply.append('\n');
+            out.write(reply.toString().getBytes(StandardCharsets.US_ASCII));
+            reply.setLength(0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int gridSize = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int targetScore = args.length > 2 ? Integer.parseInt(args[2]) : 2048;
+        int maxSessions = args.length > 3 ? Integer.parseInt(args[3]) : 50000;
+        long undoKiB = args.length > 4 ? Long.parseLong(args[4]) : 16;
+
+        try (GameServer server = new GameServer(port, gridSize, targetScore, maxSessions, undoKiB << 10)) {
+            System.out.printf("Serving %dx%d games on %s:%d, up to %d sessions%n", gridSize, gridSize,
+                    InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), maxSessions);
+            server.serve();
+        }
+    }
+}
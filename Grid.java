@@ -0,0 +1,901 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * NxN board stored as one byte exponent per cell (0 for empty, 1 for 2, 2 for 4, ...).
+ *
+ * Cells are kept row-major in a flat array, cell (x, y) at x + y * size. Every direction
+ * is handled in place by walking each line with a start offset and a stride, so a move
+ * never rotates the board and never allocates.
+ *
+ * A bitmask of empty cells is kept up to date alongside the cells, so counting the empty
+ * cells and finding the k-th one are popcounts over words instead of scans.
+ *
+ * The legal moves are kept up to date the same way. Every pair of neighbouring cells has
+ * a bit for each of the two directions along it, set when the pair alone would let that
+ * direction change the board: a tile next to an empty cell it can slide into, or two
+ * equal tiles. A direction is legal while any pair has its bit set, which a counter per
+ * direction tracks. Changing a cell only revisits the pairs it belongs to.
+ *
+ * Lines never affect each other during a move, so on boards of PARALLEL_THRESHOLD or
+ * more a move slides the lines in parallel on the common ForkJoinPool. Each task adds up
+ * its own score and flags, and the totals are combined afterwards, which gives exactly
+ * the result of the serial path. The tasks are created on the first parallel move and
+ * reused by every later one.
+ *
+ * Rows of boards of VECTOR_THRESHOLD or more go through a RowKernel instead of the cell
+ * by cell loop: the row's tiles are packed, the merging pairs are picked from a bitmask of
+ * equal neighbours, and the merged tiles are packed again, a vector of cells at a time. The
+ * kernel on the Vector API is used when the jdk.incubator.vector module is present, and
+ * otherwise rows take the scalar loop like columns do. Both give the same board.
+ */
+public final class Grid {
+    private static final int DIRECTION_COUNT = Direction.values().length;
+    private static final int LEFT = Direction.LEFT.ordinal();
+    private static final int RIGHT = Direction.RIGHT.ordinal();
+    private static final int UP = Direction.UP.ordinal();
+    private static final int DOWN = Direction.DOWN.ordinal();
+    private static final int TOWARD = 1;
+    private static final int AWAY = 2;
+
+    // Board size from which moves run in parallel; set with -Dgrid.parallelThreshold=n
+    public static final int PARALLEL_THRESHOLD = Integer.getInteger("grid.parallelThreshold", 256);
+    // Board size from which rows use the row kernel; set with -Dgrid.vectorThreshold=n
+    public static final int VECTOR_THRESHOLD = Integer.getInteger("grid.vectorThreshold", 64);
+    // Alternate bits, those a run of equal pairs starting at an even index merges
+    private static final long EVEN_BITS = 0x5555555555555555L;
+    private static final RowKernel ROW_KERNEL = loadRowKernel();
+
+    private final int size;
+    private final byte[] cells;
+    private final int targetExponent;
+
+    // Bit i of the mask is set while cell i is empty; bits past the last cell stay clear
+    private final long[] emptyBits;
+    private int emptyCount;
+
+    // State of the pair (i, i + 1) at rowPairs[i] and of (i, i + size) at columnPairs[i]:
+    // TOWARD set if LEFT/UP would change it, AWAY set if RIGHT/DOWN would
+    private final byte[] rowPairs;
+    private final byte[] columnPairs;
+    // Pairs with the direction's bit set, by Direction ordinal
+    private final int[] pairCounts = new int[DIRECTION_COUNT];
+
+    // Results of the last move
+    private int lastScore;
+    private boolean lastHitTarget;
+    private final LineMover mover; // For serial moves
+    private final boolean parallel; // Whether moves are split over the ForkJoinPool
+    private final RowKernel kernel; // For rows, or null to slide them cell by cell
+
+    // Changed cells of every line in a parallel move, as the first and last index along
+    // the line, or -1; allocated on the first parallel move
+    private int[] changedFrom;
+    private int[] changedTo;
+    private LineTask[] lineTasks; // Tasks of a parallel move, allocated with changedFrom
+
+    public Grid(int size, int targetScore) {
+        if (size < 2) {
+            throw new IllegalArgumentException("Grid size must be at least 2: " + size);
+        }
+        this.size = size;
+        this.cells = new byte[size * size];
+        this.targetExponent = exponentOf(targetScore);
+        this.emptyBits = new long[(cells.length + 63) >>> 6];
+        markEmpty(0, cells.length);
+        this.emptyCount = cells.length;
+        this.rowPairs = new byte[cells.length];
+        this.columnPairs = new byte[cells.length];
+        this.kernel = size >= VECTOR_THRESHOLD ? ROW_KERNEL : null;
+        this.parallel = size >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+        this.mover = new LineMover();
+    }
+
+    /**
+     * The Vector API row kernel, or null when the class or its module is missing
+     */
+    private static RowKernel loadRowKernel() {
+        try {
+            return (RowKernel) Class.forName("VectorRowKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the Vector API row kernel is loaded, for rows of boards of VECTOR_THRESHOLD
+     * or more
+     */
+    public static boolean hasRowKernel() {
+        return ROW_KERNEL != null;
+    }
+
+    /**
+     * Exponent of a tile value, or 0 for an empty tile
+     */
+    public static int exponentOf(int value) {
+        return value == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Tile value of an exponent, or 0 for an empty cell
+     */
+    public static int valueOf(int exponent) {
+        return exponent == 0 ? 0 : 1 << exponent;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cellCount() {
+        return cells.length;
+    }
+
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public void set(int index, int exponent) {
+        boolean wasEmpty = cells[index] == 0;
+        cells[index] = (byte) exponent;
+        if (wasEmpty != (exponent == 0)) {
+            emptyBits[index >>> 6] ^= 1L << index;
+            emptyCount += wasEmpty ? -1 : 1;
+        }
+        updatePairs(index);
+    }
+
+    /**
+     * Get the exponent at the specified position
+     */
+    public int exponentAt(int x, int y) {
+        return cells[x + y * size];
+    }
+
+    /**
+     * Get the tile value at the specified position
+     */
+    public int valueAt(int x, int y) {
+        return valueOf(cells[x + y * size]);
+    }
+
+    public void clear() {
+        Arrays.fill(cells, (byte) 0);
+        markEmpty(0, cells.length);
+        emptyCount = cells.length;
+        Arrays.fill(rowPairs, (byte) 0);
+        Arrays.fill(columnPairs, (byte) 0);
+        Arrays.fill(pairCounts, 0);
+    }
+
+    /**
+     * Copy the cells into the given array, which must hold size * size bytes
+     */
+    public void copyTo(byte[] dest) {
+        System.arraycopy(cells, 0, dest, 0, cells.length);
+    }
+
+    /**
+     * Overwrite the cells from the given array
+     */
+    public void copyFrom(byte[] src) {
+        System.arraycopy(src, 0, cells, 0, cells.length);
+        emptyCount = rebuildEmptyBits(0, emptyBits.length);
+        rebuildPairs();
+    }
+
+    /**
+     * Recompute the empty bits of words [from, to) from the cells
+     *
+     * @return number of empty cells in those words
+     */
+    private int rebuildEmptyBits(int from, int to) {
+        int count = 0;
+        for (int word = from; word < to; word++) {
+            int base = word << 6;
+            long bits = 0;
+            for (int i = Math.min(cells.length, base + 64) - 1; i >= base; i--) {
+                // Exponents are never negative, so this is 1 exactly for empty cells
+                bits = (bits << 1) | ((cells[i] - 1) >>> 31);
+            }
+            emptyBits[word] = bits;
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /**
+     * Overwrite the cells with those of another grid of the same size
+     */
+    public void copyFrom(Grid other) {
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        System.arraycopy(other.emptyBits, 0, emptyBits, 0, emptyBits.length);
+        emptyCount = other.emptyCount;
+        System.arraycopy(other.rowPairs, 0, rowPairs, 0, cells.length);
+        System.arraycopy(other.columnPairs, 0, columnPairs, 0, cells.length);
+        System.arraycopy(other.pairCounts, 0, pairCounts, 0, DIRECTION_COUNT);
+    }
+
+    /**
+     * Points scored by the last move
+     */
+    public int getLastScore() {
+        return lastScore;
+    }
+
+    /**
+     * Whether the last move merged a tile equal to the target score
+     */
+    public boolean lastHitTarget() {
+        return lastHitTarget;
+    }
+
+    /**
+     * Slide and merge every line in the given direction. No tile is spawned.
+     *
+     * @return true if any cell changed
+     */
+    public boolean move(Direction direction) {
+        lastScore = 0;
+        lastHitTarget = false;
+        if (pairCounts[direction.ordinal()] == 0) {
+            return false;
+        }
+        if (parallel) {
+            switch (direction) {
+                case LEFT:
+                    return moveParallel(0, size, 1);
+                case RIGHT:
+                    return moveParallel(size - 1, size, -1);
+                case UP:
+                    return moveParallel(0, 1, size);
+                default:
+                    return moveParallel((size - 1) * size, 1, -size);
+            }
+        }
+        LineMover m = mover;
+        m.reset();
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            switch (direction) {
+                case LEFT:
+                    changed |= moveLine(i, i * size, 1);
+                    break;
+                case RIGHT:
+                    changed |= moveLine(i, i * size + size - 1, -1);
+                    break;
+                case UP:
+                    changed |= moveLine(i, i, size);
+                    break;
+                case DOWN:
+                    changed |= moveLine(i, (size - 1) * size + i, -size);
+                    break;
+            }
+        }
+        lastScore = m.score;
+        lastHitTarget = m.hitTarget;
+        emptyCount += m.merges;
+        return changed;
+    }
+
+    /**
+     * Slide one line and bring the empty bits and pairs of its changed cells up to date
+     */
+    private boolean moveLine(int line, int start, int step) {
+        LineMover m = mover;
+        if (!m.slide(start, step)) {
+            return false;
+        }
+        // The line is now written tiles followed by empty cells
+        int written = m.written;
+        if (step == 1) {
+            markFull(start, start + written);
+            markEmpty(start + written, start + size);
+        } else if (step == -1) {
+            markFull(start - written + 1, start + 1);
+            markEmpty(start - size + 1, start - written + 1);
+        } else {
+            int pos = start;
+            for (int i = 0; i < written; i++, pos += step) {
+                emptyBits[pos >>> 6] &= ~(1L << pos);
+            }
+            for (int i = written; i < size; i++, pos += step) {
+                emptyBits[pos >>> 6] |= 1L << pos;
+            }
+        }
+        updateLinePairs(line, start, step, m.firstChanged, m.lastChanged);
+        return true;
+    }
+
+    /**
+     * Slides lines and adds up what they did. Serial moves use the grid's own; every task
+     * of a parallel move has one, so tasks never write the same field.
+     */
+    private final class LineMover {
+        int score;
+        boolean hitTarget;
+        int merges;
+        final int[] counts = new int[DIRECTION_COUNT]; // Pair count changes, parallel only
+        // Cells of the last line slid, along it, whose value changed; and tiles left in it
+        int firstChanged;
+        int lastChanged;
+        int written;
+        // Row scratch for the kernel: the packed tiles, and bits by tile; null without one
+        final byte[] tiles = kernel == null ? null : new byte[size + RowKernel.PADDING];
+        final long[] equal = kernel == null ? null : new long[(size + 63) >>> 6];
+        final long[] raise = kernel == null ? null : new long[equal.length];
+        final long[] keep = kernel == null ? null : new long[equal.length];
+
+        void reset() {
+            score = 0;
+            hitTarget = false;
+            merges = 0;
+        }
+
+        /**
+         * Slide one line towards its start and merge equal neighbours, the same way as the
+         * old moveLine followed by mergeLine. The write position never passes the read
+         * position, so the line can be rewritten in place.
+         *
+         * @return true if any cell of the line changed
+         */
+        boolean slide(int start, int step) {
+            if (tiles != null && (step == 1 || step == -1)) {
+                return step == 1 ? slideRow(start, true) : slideRow(start - size + 1, false);
+            }
+            byte[] cells = Grid.this.cells;
+            boolean changed = false;
+            // Cells outside [firstChanged, lastChanged] along the line keep their value
+            int first = -1;
+            int last = -1;
+            int write = start;
+            int count = 0;
+            boolean canMerge = false;
+            int pos = start;
+            for (int i = 0; i < size; i++, pos += step) {
+                int e = cells[pos];
+                if (e == 0) {
+                    continue;
+                }
+                if (canMerge && cells[write - step] == e) {
+                    int merged = e + 1;
+                    cells[write - step] = (byte) merged;
+                    score += 1 << merged;
+                    if (merged == targetExponent) {
+                        hitTarget = true;
+                    }
+                    canMerge = false;
+                    if (!changed) {
+                        changed = true;
+                        first = write - step;
+                    }
+                    last = write - step;
+                    merges++;
+                } else {
+                    if (write != pos) {
+                        cells[write] = (byte) e;
+                        if (!changed) {
+                            changed = true;
+                            first = write;
+                        }
+                        last = write;
+                    }
+                    write += step;
+                    count++;
+                    canMerge = true;
+                }
+            }
+            for (int i = count; i < size; i++, write += step) {
+                if (cells[write] != 0) {
+                    cells[write] = 0;
+                    if (!changed) {
+                        changed = true;
+                        first = write;
+                    }
+                    last = write;
+                }
+            }
+            firstChanged = first;
+            lastChanged = last;
+            written = count;
+            return changed;
+        }
+
+        /**
+         * Slide the row starting at cell rowStart with the kernel, towards its start for
+         * LEFT and its end for RIGHT, with the same result as the loop in slide
+         */
+        boolean slideRow(int rowStart, boolean left) {
+            byte[] cells = Grid.this.cells;
+            RowKernel k = kernel;
+            int count = k.compact(cells, rowStart, size, tiles);
+            k.equalPairs(tiles, count, equal);
+            if (left) {
+                pickLeft(count);
+            } else {
+                pickRight(count);
+            }
+            int kept = k.merge(tiles, count, raise, keep);
+
+            // Lay the new row out in tiles, then copy over what differs
+            if (left) {
+                Arrays.fill(tiles, kept, size, (byte) 0);
+            } else {
+                System.arraycopy(tiles, 0, tiles, size - kept, kept);
+                Arrays.fill(tiles, 0, size - kept, (byte) 0);
+            }
+            int first = Arrays.mismatch(cells, rowStart, rowStart + size, tiles, 0, size);
+            if (first < 0) {
+                return false;
+            }
+            int last = k.lastMismatch(cells, rowStart, tiles, size);
+            System.arraycopy(tiles, first, cells, rowStart + first, last - first + 1);
+            firstChanged = rowStart + (left ? first : last);
+            lastChanged = rowStart + (left ? last : first);
+            written = kept;
+            return true;
+        }
+
+        /**
+         * Pick the merging pairs of count packed tiles sliding towards the row's start: the
+         * first pair of every run of equal pairs and every second one after it. The first
+         * tile of a pair is raised and the second one dropped.
+         */
+        private void pickLeft(int count) {
+            int words = (count + 63) >>> 6;
+            long carried = 0;
+            long picked = 0;
+            for (int w = 0; w < words; w++) {
+                long e = equal[w];
+                long p = alternateBits(e, carried, picked);
+                raise[w] = p;
+                keep[w] = ~((p << 1) | picked) & validBits(w, count);
+                carried = e >>> 63;
+                picked = p >>> 63;
+                addMerges(w, p);
+            }
+        }
+
+        /**
+         * Pick the merging pairs sliding towards the row's end, which is pickLeft run from
+         * the last tile back: the second tile of a pair is raised and the first dropped
+         */
+        private void pickRight(int count) {
+            int words = (count + 63) >>> 6;
+            long carried = 0;
+            long picked = 0;
+            for (int w = words - 1; w >= 0; w--) {
+                long e = Long.reverse(equal[w]);
+                long reversed = alternateBits(e, carried, picked);
+                long p = Long.reverse(reversed);
+                raise[w] = p << 1;
+                if (w + 1 < words) {
+                    raise[w + 1] |= p >>> 63;
+                }
+                keep[w] = ~p & validBits(w, count);
+                carried = e >>> 63;
+                picked = reversed >>> 63;
+                addMerges(w, p);
+            }
+        }
+
+        /**
+         * Add the score of the pairs whose first tile has its bit set in word w of picks
+         */
+        private void addMerges(int w, long picks) {
+            merges += Long.bitCount(picks);
+            for (; picks != 0; picks &= picks - 1) {
+                int merged = tiles[(w << 6) + Long.numberOfTrailingZeros(picks)] + 1;
+                score += 1 << merged;
+                if (merged == targetExponent) {
+                    hitTarget = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move with the lines split over the common ForkJoinPool. Lines i start at
+     * base + i * lineStride and are walked with step.
+     *
+     * Sliding comes first, in parallel. Once every cell is final a second parallel pass
+     * rebuilds the empty bits by word, and recomputes pairs by line: each line only writes
+     * the pairs stored in its own cells, which are the pairs along it and those between it
+     * and the next line.
+     */
+    private boolean moveParallel(int base, int lineStride, int step) {
+        if (lineTasks == null) {
+            changedFrom = new int[size];
+            changedTo = new int[size];
+            int tasks = Math.min(size, ForkJoinPool.getCommonPoolParallelism() * 4);
+            lineTasks = new LineTask[tasks];
+            for (int t = 0; t < tasks; t++) {
+                lineTasks[t] = new LineTask(t, tasks);
+            }
+        }
+        for (LineTask task : lineTasks) {
+            task.start(base, lineStride, step);
+        }
+        ForkJoinTask.invokeAll(lineTasks);
+
+        // Combine in task order, the order the serial path visits the lines
+        for (LineTask task : lineTasks) {
+            lastScore += task.mover.score;
+            lastHitTarget |= task.mover.hitTarget;
+        }
+        boolean changed = false;
+        for (int line = 0; line < size && !changed; line++) {
+            changed = changedFrom[line] >= 0;
+        }
+        if (!changed) {
+            return false;
+        }
+
+        for (LineTask task : lineTasks) {
+            task.startRebuild();
+        }
+        ForkJoinTask.invokeAll(lineTasks);
+
+        int count = 0;
+        for (LineTask task : lineTasks) {
+            count += task.empty;
+            for (int d = 0; d < DIRECTION_COUNT; d++) {
+                pairCounts[d] += task.mover.counts[d];
+            }
+        }
+        emptyCount = count;
+        return true;
+    }
+
+    /**
+     * A fixed share of the lines and of the empty bit words in a parallel move. The same
+     * tasks run both passes of every parallel move, reinitialized in between, so a move
+     * allocates nothing itself; only the pool may take a few bytes while the calling
+     * thread waits for them.
+     */
+    @SuppressWarnings("serial") // Never serialized
+    private final class LineTask extends RecursiveAction {
+        final LineMover mover = new LineMover();
+        private final int fromLine;
+        private final int toLine;
+        private final int fromWord;
+        private final int toWord;
+        // The move being made, and whether this pass slides or rebuilds
+        private int base;
+        private int lineStride;
+        private int step;
+        private boolean rebuild;
+        int empty; // Empty cells in the task's words, counted by the rebuild pass
+
+        LineTask(int t, int tasks) {
+            fromLine = (int) ((long) size * t / tasks);
+            toLine = (int) ((long) size * (t + 1) / tasks);
+            fromWord = (int) ((long) emptyBits.length * t / tasks);
+            toWord = (int) ((long) emptyBits.length * (t + 1) / tasks);
+        }
+
+        void start(int base, int lineStride, int step) {
+            reinitialize();
+            this.base = base;
+            this.lineStride = lineStride;
+            this.step = step;
+            rebuild = false;
+            mover.reset();
+            Arrays.fill(mover.counts, 0);
+        }
+
+        void startRebuild() {
+            reinitialize();
+            rebuild = true;
+        }
+
+        @Override
+        protected void compute() {
+            int along = Math.abs(step);
+            if (rebuild) {
+                empty = rebuildEmptyBits(fromWord, toWord);
+                for (int line = fromLine; line < toLine; line++) {
+                    updateOwnedPairs(line, lineStride, along, along == 1, mover.counts);
+                }
+                return;
+            }
+            for (int line = fromLine; line < toLine; line++) {
+                int lineFirst = line * lineStride;
+                if (mover.slide(base + line * lineStride, step)) {
+                    int a = (mover.firstChanged - lineFirst) / along;
+                    int b = (mover.lastChanged - lineFirst) / along;
+                    changedFrom[line] = Math.min(a, b);
+                    changedTo[line] = Math.max(a, b);
+                } else {
+                    changedFrom[line] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recompute the pairs along a line next to its changed cells, and the pairs between it
+     * and the next line next to the changed cells of either, after a parallel slide
+     */
+    private void updateOwnedPairs(int line, int lineStride, int along, boolean horizontal, int[] counts) {
+        byte[] alongPairs = horizontal ? rowPairs : columnPairs;
+        byte[] acrossPairs = horizontal ? columnPairs : rowPairs;
+        int alongToward = horizontal ? LEFT : UP;
+        int alongAway = horizontal ? RIGHT : DOWN;
+        int acrossToward = horizontal ? UP : LEFT;
+        int acrossAway = horizontal ? DOWN : RIGHT;
+        int first = line * lineStride;
+
+        int from = changedFrom[line];
+        int to = changedTo[line];
+        if (from >= 0) {
+            for (int k = Math.max(0, from - 1); k <= Math.min(size - 2, to); k++) {
+                int a = first + k * along;
+                updatePair(alongPairs, a, a + along, alongToward, alongAway, counts);
+            }
+        }
+        if (line == size - 1) {
+            return;
+        }
+        int nextFrom = changedFrom[line + 1];
+        int nextTo = changedTo[line + 1];
+        if (from < 0) {
+            from = nextFrom;
+            to = nextTo;
+        } else if (nextFrom >= 0) {
+            from = Math.min(from, nextFrom);
+            to = Math.max(to, nextTo);
+        }
+        if (from < 0) {
+            return;
+        }
+        for (int k = from; k <= to; k++) {
+            int a = first + k * along;
+            updatePair(acrossPairs, a, a + lineStride, acrossToward, acrossAway, counts);
+        }
+    }
+
+    /**
+     * Recompute the pairs of the changed cells from..to of a line: pairs along the line,
+     * and pairs across it with the neighbouring lines
+     */
+    private void updateLinePairs(int line, int start, int step, int from, int to) {
+        int end = to + step;
+        if (step == 1 || step == -1) {
+            if (end != start + size * step) {
+                // The pair after the last changed cell
+                int a = Math.min(to, end);
+                updatePair(rowPairs, a, a + 1, LEFT, RIGHT);
+            }
+            for (int pos = from; pos != end; pos += step) {
+                if (pos != start) {
+                    int a = Math.min(pos, pos - step);
+                    updatePair(rowPairs, a, a + 1, LEFT, RIGHT);
+                }
+                if (pos >= size) {
+                    updatePair(columnPairs, pos - size, pos, UP, DOWN);
+                }
+                if (pos + size < cells.length) {
+                    updatePair(columnPairs, pos, pos + size, UP, DOWN);
+                }
+            }
+        } else {
+            if (end != start + size * step) {
+                int a = Math.min(to, end);
+                updatePair(columnPairs, a, a + size, UP, DOWN);
+            }
+            for (int pos = from; pos != end; pos += step) {
+                if (pos != start) {
+                    int a = Math.min(pos, pos - step);
+                    updatePair(columnPairs, a, a + size, UP, DOWN);
+                }
+                if (line > 0) {
+                    updatePair(rowPairs, pos - 1, pos, LEFT, RIGHT);
+                }
+                if (line < size - 1) {
+                    updatePair(rowPairs, pos, pos + 1, LEFT, RIGHT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Of every run of set bits in a word of equal pairs, the first bit and every second one
+     * after it. A run that goes on from the previous word keeps alternating from there.
+     *
+     * @param carried 1 if bit 63 of the previous word was set, else 0
+     * @param picked 1 if that bit was picked, else 0
+     */
+    private static long alternateBits(long equal, long carried, long picked) {
+        long starts = equal & ~((equal << 1) | carried);
+        long evenStarts = (starts & EVEN_BITS) | (equal & carried & ~picked);
+        // Adding a run's lowest bit clears the whole run, so this keeps runs started on even bits
+        long evenRuns = equal & ~(equal + evenStarts);
+        return (evenRuns & EVEN_BITS) | (equal & ~evenRuns & ~EVEN_BITS);
+    }
+
+    /**
+     * Bits of word w that stand for one of count tiles
+     */
+    private static long validBits(int w, int count) {
+        int end = count - (w << 6);
+        return end >= 64 ? -1L : (1L << end) - 1;
+    }
+
+    /**
+     * Set the empty bits of cells [from, to)
+     */
+    private void markEmpty(int from, int to) {
+        for (int word = from >>> 6; from < to; word++) {
+            int end = Math.min(to, (word + 1) << 6);
+            emptyBits[word] |= rangeMask(from, end);
+            from = end;
+        }
+    }
+
+    /**
+     * Clear the empty bits of cells [from, to)
+     */
+    private void markFull(int from, int to) {
+        for (int word = from >>> 6; from < to; word++) {
+            int end = Math.min(to, (word + 1) << 6);
+            emptyBits[word] &= ~rangeMask(from, end);
+            from = end;
+        }
+    }
+
+    /**
+     * Bits [from, to) of the word holding from, where to is at most the end of that word
+     */
+    private static long rangeMask(int from, int to) {
+        long upTo = to - (from & ~63) == 64 ? -1L : (1L << to) - 1;
+        return upTo & (-1L << from);
+    }
+
+    /**
+     * Count the empty cells
+     */
+    public int emptyCount() {
+        return emptyCount;
+    }
+
+    /**
+     * Index of the k-th empty cell in row-major order, or -1 if there are not that many
+     */
+    public int nthEmpty(int k) {
+        for (int word = 0; word < emptyBits.length; word++) {
+            long bits = emptyBits[word];
+            int count = Long.bitCount(bits);
+            if (k < count) {
+                return (word << 6) + select(bits, k);
+            }
+            k -= count;
+        }
+        return -1;
+    }
+
+    /**
+     * Position of the k-th set bit of a word that has more than k set bits, narrowed
+     * down by halves with popcounts
+     */
+    static int select(long bits, int k) {
+        int base = 0;
+        int count = Long.bitCount(bits & 0xFFFFFFFFL);
+        if (k >= count) {
+            k -= count;
+            bits >>>= 32;
+            base += 32;
+        }
+        count = Long.bitCount(bits & 0xFFFFL);
+        if (k >= count) {
+            k -= count;
+            bits >>>= 16;
+            base += 16;
+        }
+        count = Long.bitCount(bits & 0xFFL);
+        if (k >= count) {
+            k -= count;
+            bits >>>= 8;
+            base += 8;
+        }
+        for (; k > 0; k--) {
+            bits &= bits - 1;
+        }
+        return base + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Check if any move would change the board
+     */
+    public boolean canMove() {
+        return legalMoves() != 0;
+    }
+
+    /**
+     * Check if a move in the given direction would change the board
+     */
+    public boolean isLegal(Direction direction) {
+        return pairCounts[direction.ordinal()] != 0;
+    }
+
+    /**
+     * Directions that would change the board, as a mask with bit d set for the
+     * direction with ordinal d
+     */
+    public int legalMoves() {
+        int mask = 0;
+        for (int d = 0; d < DIRECTION_COUNT; d++) {
+            if (pairCounts[d] != 0) {
+                mask |= 1 << d;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Recompute the pairs a cell belongs to
+     */
+    private void updatePairs(int index) {
+        int x = index % size;
+        if (x > 0) {
+            updatePair(rowPairs, index - 1, index, LEFT, RIGHT);
+        }
+        if (x < size - 1) {
+            updatePair(rowPairs, index, index + 1, LEFT, RIGHT);
+        }
+        if (index >= size) {
+            updatePair(columnPairs, index - size, index, UP, DOWN);
+        }
+        if (index + size < cells.length) {
+            updatePair(columnPairs, index, index + size, UP, DOWN);
+        }
+    }
+
+    /**
+     * Recompute the pair of cells a and b, where toward is the direction that moves b
+     * onto a and away the one that moves a onto b
+     */
+    private void updatePair(byte[] pairs, int a, int b, int toward, int away) {
+        updatePair(pairs, a, b, toward, away, pairCounts);
+    }
+
+    /**
+     * Recompute a pair, adding the change of its bits to the given counters
+     */
+    private void updatePair(byte[] pairs, int a, int b, int toward, int away, int[] counts) {
+        int ea = cells[a];
+        int eb = cells[b];
+        // Branch-free, since pair states flip unpredictably; exponents are never negative
+        int emptyA = (ea - 1) >>> 31;
+        int emptyB = (eb - 1) >>> 31;
+        int merge = (((ea ^ eb) - 1) >>> 31) & (emptyA ^ 1);
+        int state = (merge | (emptyA & (emptyB ^ 1))) * TOWARD | (merge | (emptyB & (emptyA ^ 1))) * AWAY;
+        int old = pairs[a];
+        pairs[a] = (byte) state;
+        counts[toward] += (state & TOWARD) - (old & TOWARD);
+        counts[away] += (state >> 1) - (old >> 1);
+    }
+
+    /**
+     * Recompute every pair after the cells were replaced wholesale
+     */
+    private void rebuildPairs() {
+        Arrays.fill(rowPairs, (byte) 0);
+        Arrays.fill(columnPairs, (byte) 0);
+        Arrays.fill(pairCounts, 0);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int i = x + y * size;
+                if (x < size - 1) {
+                    updatePair(rowPairs, i, i + 1, LEFT, RIGHT);
+                }
+                if (y < size - 1) {
+                    updatePair(columnPairs, i, i + size, UP, DOWN);
+                }
+            }
+        }
+    }
+}
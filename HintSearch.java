@@ -0,0 +1,176 @@
+import java.util.function.BooleanSupplier;
+
+/**
+ * Works out the move to suggest for the board on screen, on a thread of its own and within
+ * a time budget.
+ *
+ * A position is searched by expectimax one ply deeper at a time, and every depth that
+ * completes replaces the hint. The first depth only looks one move ahead and is always
+ * finished, so there is a hint almost at once; the deeper ones run until the budget is
+ * spent and the one still in progress then is dropped. A new position or cancel() stops
+ * the running search at its next poll, well under a millisecond away, so the thread never
+ * keeps working on a board the player has moved on from.
+ *
+ * search() and cancel() are meant to be called from one thread, the event thread.
+ */
+public final class HintSearch implements AutoCloseable {
+    // Deepest search tried in plies, however much of the budget is left
+    static final int MAX_DEPTH = 20;
+    private static final int TABLE_BITS = 18;
+
+    /**
+     * A suggested move and how far ahead it was searched
+     */
+    public static final class Hint {
+        private final BoardSnapshot position;
+        private final Direction move;
+        private final int depth;
+
+        Hint(BoardSnapshot position, Direction move, int depth) {
+            this.position = position;
+            this.move = move;
+            this.depth = depth;
+        }
+
+        /**
+         * The snapshot the move was found for
+         */
+        public BoardSnapshot getPosition() {
+            return position;
+        }
+
+        public Direction getMove() {
+            return move;
+        }
+
+        /**
+         * Plies searched, moves and spawns both counting
+         */
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    private final long budgetNanos;
+    private final Runnable onHint;
+    private final Thread thread;
+    private final ExpectimaxPlayer player = new ExpectimaxPlayer(MAX_DEPTH, TABLE_BITS); // Search thread only
+
+    private final Object lock = new Object();
+    private BoardSnapshot pending; // Next position to search, guarded by lock
+    private boolean closed; // Guarded by lock
+    private volatile long generation; // Advanced by every search() and cancel(), under lock
+    private volatile Hint hint; // For the latest position, or null
+
+    /**
+     * @param budgetMillis how long to keep deepening a search
+     * @param onHint       called on the search thread when a search has finished with a hint
+     */
+    public HintSearch(long budgetMillis, Runnable onHint) {
+        this.budgetNanos = budgetMillis * 1_000_000;
+        this.onHint = onHint;
+        this.thread = new Thread(this::run, "hint-search");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Drop the hint and any running search and start on a new position
+     */
+    public void search(BoardSnapshot position) {
+        synchronized (lock) {
+            generation++;
+            hint = null;
+            pending = position;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Drop the hint and any running search, for a position that is about to change
+     */
+    public void cancel() {
+        synchronized (lock) {
+            generation++;
+            hint = null;
+            pending = null;
+        }
+    }
+
+    /**
+     * The best move found so far for the latest position, or null if none yet
+     */
+    public Hint getHint() {
+        return hint;
+    }
+
+    /**
+     * Stop the search thread
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            generation++;
+            closed = true;
+            lock.notify();
+        }
+    }
+
+    private void run() {
+        Grid grid = null;
+        byte[] cells = null;
+        while (true) {
+            BoardSnapshot position;
+            long searching;
+            synchronized (lock) {
+                while (pending == null && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                position = pending;
+                pending = null;
+                searching = generation;
+            }
+
+            int size = position.size();
+            if (grid == null || grid.size() != size) {
+                grid = new Grid(size, 0);
+                cells = new byte[size * size];
+            }
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = (byte) position.get(i);
+            }
+            grid.copyFrom(cells);
+
+            long deadline = System.nanoTime() + budgetNanos;
+            BooleanSupplier superseded = () -> generation != searching;
+            BooleanSupplier outOfTime = () -> generation != searching || System.nanoTime() - deadline >= 0;
+            boolean found = false;
+            for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+                Direction move = player.bestMove(grid, depth, depth == 1 ? superseded : outOfTime);
+                if (move == null) {
+                    break; // Stopped, or no move is left
+                }
+                synchronized (lock) {
+                    if (generation != searching) {
+                        break;
+                    }
+                    hint = new Hint(position, move, depth);
+                }
+                found = true;
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+            if (found && generation == searching) {
+                onHint.run();
+            }
+        }
+    }
+}
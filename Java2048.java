@@ -1,416 +1,560 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Stack;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Java2048 extends JPanel {
     private static final Color BG_COLOR = new Color(0xbbada0);
     private static final String FONT_NAME = "Arial";
     private static final int TILE_SIZE = 64;
     private static final int TILES_MARGIN = 16;
+    private static final int SCORE_HEIGHT = 60; // Space above the tiles for the score
+    private static final int MAX_VIEW_SIZE = 800; // Larger boards start zoomed out to fit
+    private static final double ZOOM_STEP = 1.25;
+    private static final Color TEXT_COLOR = new Color(0x776e65);
+    private static final Color OVERLAY_COLOR = new Color(255, 255, 255, 30);
+    private static final Color MESSAGE_COLOR = new Color(78, 139, 202);
+    private static final Font SCORE_FONT = new Font(FONT_NAME, Font.PLAIN, 18);
+    private static final Font TITLE_FONT = new Font(FONT_NAME, Font.BOLD, 48);
+    private static final Font MESSAGE_FONT = new Font(FONT_NAME, Font.PLAIN, 24);
+    private static final Font HINT_FONT = new Font(FONT_NAME, Font.PLAIN, 14);
+    private static final int HINT_HEIGHT = 40; // Space under the tiles for hints
+    private static final int HINT_BAR = 5; // Width of the bar on the side of the hinted move
+    private static final Color HINT_COLOR = new Color(0x8f7a66);
+    // Time a hint search keeps deepening; set with -Dgame.hintMillis=n
+    private static final long HINT_MILLIS = Long.getLong("game.hintMillis", 20);
+    private static final int AUTOPLAY_DELAY = 50; // Milliseconds between AI moves
+    private static final String REPLAY_DIR = "replays";
+    // The game in progress, kept up to date; set with -Dgame.save=file
+    private static final Path SAVE_FILE = Paths.get(System.getProperty("game.save", "java2048.save"));
+    private static final long ANIMATION_NANOS = 120_000_000L;
+    private static final double SLIDE_SHARE = 0.6; // Part of the animation spent sliding, the rest popping
+    private static final double POP_SCALE = 0.2; // How much merged tiles grow at the top of the pop
+    private static final int LATENCY_HISTORY = 256;
+    // What the engine does with held key repeats it cannot keep up with; set with -Dgame.repeats=queue|coalesce|drop
+    private static final GameLoop.RepeatPolicy REPEAT_POLICY =
+            GameLoop.RepeatPolicy.valueOf(System.getProperty("game.repeats", "coalesce").toUpperCase(Locale.ROOT));
 
     private int gridSize; // Instance variable for grid size
     private int targetScore; // Winning score set by the user
     private boolean undoEnabled; // Flag to determine if Undo is enabled
 
-    private Tile[] myTiles;
-    boolean myWin = false;
-    boolean myLose = false;
+    private final GameLoop myLoop; // Runs the game rules on the engine thread
+    private BoardSnapshot mySnapshot; // What the panel shows
+    private final AtomicBoolean myUpdatePending = new AtomicBoolean();
+    private int myHeldKey = -1; // Key pressed and not yet released, whose presses are repeats
+    private final RecentTimes myLatency = new RecentTimes(LATENCY_HISTORY); // From input to display
+    private BoardSnapshot myPainted; // Latest snapshot whose latency was recorded
+    private final TileRenderer myTiles = new TileRenderer(FONT_NAME, TILE_SIZE);
+    private final Viewport myView; // Part of the board on screen and its zoom
+    private Point myDragStart; // Last mouse position while dragging the board
+    // What the last repaint request showed, to work out which tiles changed since
+    private final byte[] myShown;
+    private int myShownScore;
+    private boolean myShownWin;
+    private boolean myShownLose;
+
+    private final FrameScheduler myFrames = new FrameScheduler(this::animationFrame);
+    private TileAnimation myAnimation;
+    private Rectangle myAnimationBounds; // Area the running animation draws in
+    private boolean myShowFrameTimes; // Toggled with F
+    private boolean myShowHints; // Toggled with H
+    private boolean mySolutionsOpened;
+    private SolutionTable mySolutions; // Perfect play on 2x2 and 3x3, if solved
+    private HintSearch myHintSearch; // Started on the first H without a table
     boolean hasShownWinDialog = false; // Flag to check if win dialog has been shown
-    int myScore = 0;
 
-    // Stack to store previous game states for Undo functionality
-    private Stack<GameState> previousStates;
+    // Autoplay ticks count as repeats, so a slow AI never has ticks piling up
+    private final Timer myAutoplay = new Timer(AUTOPLAY_DELAY, e -> processKey(KeyEvent.VK_A, true));
 
     public Java2048(int gridSize, int targetScore, boolean undoEnabled) {
+        this(gridSize, targetScore, undoEnabled, null);
+    }
+
+    /**
+     * @param replayDir directory to record a replay of every game into, or null
+     */
+    public Java2048(int gridSize, int targetScore, boolean undoEnabled, Path replayDir) {
+        this(gridSize, targetScore, undoEnabled, replayDir, null);
+    }
+
+    /**
+     * Go on with a saved game
+     *
+     * @param replayDir directory to record a replay of every later game into, or null
+     */
+    public Java2048(AutoSave.Saved saved, Path replayDir) {
+        this(saved.getEngine().getGridSize(), saved.getEngine().getTargetScore(), saved.getEngine().isUndoEnabled(),
+                replayDir, saved);
+    }
+
+    private Java2048(int gridSize, int targetScore, boolean undoEnabled, Path replayDir, AutoSave.Saved saved) {
         this.gridSize = gridSize;
         this.targetScore = targetScore;
         this.undoEnabled = undoEnabled;
-
-        if (undoEnabled) {
-            previousStates = new Stack<>();
-        }
-
-        int preferredWidth = gridSize * (TILE_SIZE + TILES_MARGIN) + TILES_MARGIN;
+        this.myLoop = saved != null
+                ? new GameLoop(saved, replayDir, SAVE_FILE, REPEAT_POLICY, this::snapshotPublished)
+                : new GameLoop(gridSize, targetScore, undoEnabled, replayDir, SAVE_FILE, REPEAT_POLICY,
+                        this::snapshotPublished);
+        this.mySnapshot = myLoop.snapshot();
+        this.myPainted = mySnapshot; // Not an answer to any input
+        this.myShown = new byte[gridSize * gridSize];
+        for (int i = 0; i < myShown.length; i++) {
+            myShown[i] = (byte) mySnapshot.get(i);
+        }
+
+        this.myView = new Viewport(gridSize, TILE_SIZE, TILES_MARGIN, SCORE_HEIGHT);
+        int preferredWidth = Math.min(MAX_VIEW_SIZE, gridSize * (TILE_SIZE + TILES_MARGIN) + TILES_MARGIN);
         int preferredHeight = preferredWidth + 100; // Extra space for score and messages
         setPreferredSize(new Dimension(preferredWidth, preferredHeight));
+        myView.setSize(preferredWidth, preferredWidth);
+        myView.fit();
         setFocusable(true);
         setLayout(null); // Using absolute positioning for simplicity
+        setDoubleBuffered(true); // Animation frames are drawn off screen and shown whole
 
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
-                if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
-                    resetGame();
-                }
-                if (!canMove()) {
-                    myLose = true;
-                }
-
-                if (!myLose) {
-                    switch (e.getKeyCode()) {
-                        case KeyEvent.VK_LEFT:
-                            move(Direction.LEFT);
-                            break;
-                        case KeyEvent.VK_RIGHT:
-                            move(Direction.RIGHT);
-                            break;
-                        case KeyEvent.VK_DOWN:
-                            move(Direction.DOWN);
-                            break;
-                        case KeyEvent.VK_UP:
-                            move(Direction.UP);
-                            break;
-                        case KeyEvent.VK_U:
-                            if (undoEnabled) {
-                                performUndo();
-                            }
-                            break;
-                    }
+                if (e.getKeyCode() == KeyEvent.VK_P) {
+                    toggleAutoplay();
+                } else if (e.getKeyCode() == KeyEvent.VK_H) {
+                    toggleHints();
+                } else if (e.getKeyCode() == KeyEvent.VK_F) {
+                    myShowFrameTimes = !myShowFrameTimes;
+                    repaint(0, 0, getWidth(), SCORE_HEIGHT);
+                } else if (e.getKeyCode() == KeyEvent.VK_EQUALS || e.getKeyCode() == KeyEvent.VK_PLUS) {
+                    zoom(ZOOM_STEP, getWidth() / 2, SCORE_HEIGHT + myView.getHeight() / 2);
+                } else if (e.getKeyCode() == KeyEvent.VK_MINUS) {
+                    zoom(1 / ZOOM_STEP, getWidth() / 2, SCORE_HEIGHT + myView.getHeight() / 2);
+                } else if (e.getKeyCode() == KeyEvent.VK_0) {
+                    myView.fit();
+                    viewChanged();
+                } else {
+                    processKey(e.getKeyCode(), e.getKeyCode() == myHeldKey);
+                    myHeldKey = e.getKeyCode();
                 }
+            }
 
-                if (!myWin && !canMove()) {
-                    myLose = true;
+            @Override
+            public void keyReleased(KeyEvent e) {
+                if (e.getKeyCode() == myHeldKey) {
+                    myHeldKey = -1;
                 }
+            }
+        });
 
-                // Show win dialog if necessary
-                if (myWin && !hasShownWinDialog) {
-                    hasShownWinDialog = true;
-                    SwingUtilities.invokeLater(() -> showWinDialog());
-                }
+        // The wheel zooms around the pointer and dragging scrolls the board
+        addMouseWheelListener(e -> zoom(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getX(), e.getY()));
+        MouseAdapter drag = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                myDragStart = e.getPoint();
+                requestFocusInWindow();
+            }
 
-                repaint();
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                myView.panBy(e.getX() - myDragStart.x, e.getY() - myDragStart.y);
+                myDragStart = e.getPoint();
+                viewChanged();
+            }
+        };
+        addMouseListener(drag);
+        addMouseMotionListener(drag);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                myView.setSize(getWidth(), Math.max(0, getHeight() - SCORE_HEIGHT));
+                viewChanged();
             }
         });
-        resetGame();
+        myLoop.start();
     }
 
     /**
-     * Enum to represent movement directions
+     * Zoom the board by a factor around a point of the panel
      */
-    private enum Direction {
-        LEFT, RIGHT, UP, DOWN
+    private void zoom(double factor, int x, int y) {
+        myView.zoomAt(factor, x, y);
+        viewChanged();
     }
 
     /**
-     * Class to store the game state for Undo functionality
+     * Redraw everything after the view scrolled or zoomed; a running animation would be
+     * drawn from stale positions, so it ends
      */
-    private static class GameState {
-        Tile[] tiles;
-        int score;
-        boolean win;
-        boolean lose;
-
-        public GameState(Tile[] tiles, int score, boolean win, boolean lose) {
-            // Deep copy of tiles
-            this.tiles = new Tile[tiles.length];
-            for (int i = 0; i < tiles.length; i++) {
-                this.tiles[i] = new Tile(tiles[i].value);
-            }
-            this.score = score;
-            this.win = win;
-            this.lose = lose;
-        }
+    private void viewChanged() {
+        myFrames.stop();
+        repaint();
     }
 
     /**
-     * Perform the Undo action
+     * Hand a key press to the engine thread
+     *
+     * @param repeat whether the key was held down and this press is a repeat
      */
-    private void performUndo() {
-        if (!previousStates.isEmpty()) {
-            GameState prevState = previousStates.pop();
-            // Restore tiles
-            for (int i = 0; i < myTiles.length; i++) {
-                myTiles[i].value = prevState.tiles[i].value;
-            }
-            // Restore score and flags
-            myScore = prevState.score;
-            myWin = prevState.win;
-            myLose = prevState.lose;
-
-            repaint();
+    private void processKey(int keyCode, boolean repeat) {
+        GameLoop.Command command;
+        switch (keyCode) {
+            case KeyEvent.VK_ESCAPE:
+                command = GameLoop.Command.RESET;
+                break;
+            case KeyEvent.VK_LEFT:
+                command = GameLoop.Command.LEFT;
+                break;
+            case KeyEvent.VK_RIGHT:
+                command = GameLoop.Command.RIGHT;
+                break;
+            case KeyEvent.VK_DOWN:
+                command = GameLoop.Command.DOWN;
+                break;
+            case KeyEvent.VK_UP:
+                command = GameLoop.Command.UP;
+                break;
+            case KeyEvent.VK_U:
+                command = GameLoop.Command.UNDO;
+                break;
+            case KeyEvent.VK_R:
+                command = GameLoop.Command.REDO;
+                break;
+            case KeyEvent.VK_B:
+                command = GameLoop.Command.BRANCH;
+                break;
+            case KeyEvent.VK_A:
+                command = GameLoop.Command.AI;
+                break;
+            default:
+                return;
+        }
+        if (!undoEnabled && (command == GameLoop.Command.UNDO || command == GameLoop.Command.REDO
+                || command == GameLoop.Command.BRANCH)) {
+            return;
         }
+        if (myHintSearch != null) {
+            myHintSearch.cancel(); // The hint is for the board this command changes
+        }
+        myLoop.post(command, repeat);
     }
 
     /**
-     * Show the Win Dialog with options to Continue or Restart
+     * Called on the engine thread for every snapshot; however many arrive, the event
+     * thread is only asked once to catch up with the latest
      */
-    private void showWinDialog() {
-        int option = JOptionPane.showOptionDialog(
-                this,
-                "You reached " + targetScore + "! Do you want to continue playing?",
-                "You Win!",
-                JOptionPane.YES_NO_OPTION,
-                JOptionPane.INFORMATION_MESSAGE,
-                null,
-                new String[]{"Continue", "Restart"},
-                "Continue");
-        if (option == JOptionPane.NO_OPTION) {
-            resetGame();
-        } else {
-            myWin = false; // Continue playing
+    private void snapshotPublished() {
+        if (myUpdatePending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                myUpdatePending.set(false);
+                showSnapshot(myLoop.snapshot());
+            });
         }
     }
 
     /**
-     * Reset the game to initial state
+     * Show the latest snapshot: animate it if it is the move played from the board on
+     * screen, else jump to it
      */
-    public void resetGame() {
-        myScore = 0;
-        myWin = false;
-        myLose = false;
-        hasShownWinDialog = false;
-        myTiles = new Tile[gridSize * gridSize];
-        for (int i = 0; i < myTiles.length; i++) {
-            myTiles[i] = new Tile();
-        }
-        if (undoEnabled) {
-            previousStates.clear();
-        }
-        addTile();
-        addTile();
-    }
+    private void showSnapshot(BoardSnapshot next) {
+        BoardSnapshot shown = mySnapshot;
+        if (next == shown) {
+            return;
+        }
+        mySnapshot = next;
+        if (next.getGame() != shown.getGame()) {
+            hasShownWinDialog = false;
+        }
+        if (next.followsFrom(shown) && !myView.isCellMode()) {
+            startAnimation(next);
+        } else if (!next.hasSameCells(shown)) {
+            stopAnimation();
+        }
 
-    /**
-     * Perform a move in the specified direction
-     */
-    private void move(Direction direction) {
-        // Save current state before move if Undo is enabled
-        if (undoEnabled) {
-            previousStates.push(new GameState(myTiles, myScore, myWin, myLose));
+        // Show win dialog if necessary
+        if (next.isWin() && !hasShownWinDialog) {
+            hasShownWinDialog = true;
+            myAutoplay.stop();
+            SwingUtilities.invokeLater(() -> showWinDialog());
+        }
+        if (next.isLose()) {
+            myAutoplay.stop();
         }
 
-        switch (direction) {
-            case LEFT:
-                left();
-                break;
-            case RIGHT:
-                rotate(180);
-                left();
-                rotate(180);
-                break;
-            case UP:
-                rotate(270);
-                left();
-                rotate(90);
-                break;
-            case DOWN:
-                rotate(90);
-                left();
-                rotate(270);
-                break;
+        repaintChanges();
+        if (myShowHints) {
+            if (myHintSearch != null) {
+                myHintSearch.search(next);
+            }
+            repaintHints();
         }
     }
 
     /**
-     * Move tiles to the left
+     * Repaint the tiles that changed since the last call and the score; everything when
+     * the win or lose overlay changed
      */
-    public void left() {
-        boolean needAddTile = false;
-        for (int i = 0; i < gridSize; i++) {
-            Tile[] line = getLine(i);
-            Tile[] merged = mergeLine(moveLine(line));
-            setLine(i, merged);
-            if (!needAddTile && !compare(line, merged)) {
-                needAddTile = true;
+    private void repaintChanges() {
+        BoardSnapshot board = mySnapshot;
+        if (board.isWin() != myShownWin || board.isLose() != myShownLose) {
+            myShownWin = board.isWin();
+            myShownLose = board.isLose();
+            myShownScore = board.getScore();
+            for (int i = 0; i < myShown.length; i++) {
+                myShown[i] = (byte) board.get(i);
             }
+            repaint();
+            return;
         }
-
-        if (needAddTile) {
-            addTile();
+        if (board.getScore() != myShownScore) {
+            myShownScore = board.getScore();
+            repaint(0, 0, getWidth(), SCORE_HEIGHT);
+        }
+        // One rectangle per run of changed tiles in a row; plain cells are too small to
+        // bother, so any change repaints the board
+        boolean cellMode = myView.isCellMode();
+        boolean changed = false;
+        for (int y = 0; y < gridSize; y++) {
+            int row = y * gridSize;
+            for (int x = 0; x < gridSize; x++) {
+                if (board.get(row + x) == myShown[row + x]) {
+                    continue;
+                }
+                int end = x;
+                do {
+                    myShown[row + end] = (byte) board.get(row + end);
+                    end++;
+                } while (end < gridSize && board.get(row + end) != myShown[row + end]);
+                if (!cellMode) {
+                    int left = myView.tileX(x);
+                    repaint(left, myView.tileY(y), myView.tileX(end - 1) + myView.tileSize() - left, myView.tileSize());
+                }
+                changed = true;
+                x = end;
+            }
+        }
+        if (cellMode && changed) {
+            repaint(0, SCORE_HEIGHT, getWidth(), getHeight() - SCORE_HEIGHT);
         }
     }
 
     /**
-     * Rotate the grid by the specified angle (90, 180, 270 degrees)
+     * Show or hide the hinted move. Boards with a solved table, from SmallBoardSolver, get
+     * perfect play from it; the rest get it from a background search.
      */
-    private void rotate(int angle) {
-        Tile[] newTiles = new Tile[gridSize * gridSize];
-        int offsetX = gridSize - 1;
-        int offsetY = gridSize - 1;
-        if (angle == 90) {
-            offsetY = 0;
-        } else if (angle == 270) {
-            offsetX = 0;
-        }
-
-        int cos = 0;
-        int sin = 0;
-        angle = angle % 360;
-        if (angle == 0) {
-            cos = 1;
-            sin = 0;
-        } else if (angle == 90) {
-            cos = 0;
-            sin = 1;
-        } else if (angle == 180) {
-            cos = -1;
-            sin = 0;
-        } else if (angle == 270) {
-            cos = 0;
-            sin = -1;
-        }
-
-        for (int x = 0; x < gridSize; x++) {
-            for (int y = 0; y < gridSize; y++) {
-                int newX = (x * cos) - (y * sin) + offsetX;
-                int newY = (x * sin) + (y * cos) + offsetY;
-                newTiles[newX + newY * gridSize] = tileAt(x, y);
+    private void toggleHints() {
+        myShowHints = !myShowHints;
+        if (myShowHints && !mySolutionsOpened) {
+            mySolutionsOpened = true;
+            if (gridSize <= SmallBoard.MAX_SIZE) {
+                try {
+                    mySolutions = SolutionTable.open(SolutionTable.defaultPath(gridSize, targetScore));
+                } catch (IOException e) {
+                    // Not solved for this target; search instead
+                }
             }
         }
-        myTiles = newTiles;
+        if (mySolutions == null) {
+            if (myHintSearch == null) {
+                myHintSearch = new HintSearch(HINT_MILLIS, this::hintFound);
+            }
+            if (myShowHints) {
+                myHintSearch.search(mySnapshot);
+            } else {
+                myHintSearch.cancel();
+            }
+        }
+        repaintHints();
     }
 
     /**
-     * Move a single line to the left (remove empty tiles)
+     * Called on the search thread when it has settled on a hint
      */
-    private Tile[] moveLine(Tile[] oldLine) {
-        LinkedList<Tile> l = new LinkedList<>();
-        for (int i = 0; i < gridSize; i++) {
-            if (!oldLine[i].isEmpty())
-                l.addLast(oldLine[i]);
-        }
-        if (l.isEmpty()) {
-            return oldLine;
-        } else {
-            Tile[] newLine = new Tile[gridSize];
-            ensureSize(l, gridSize);
-            for (int i = 0; i < gridSize; i++) {
-                newLine[i] = l.removeFirst();
+    private void hintFound() {
+        SwingUtilities.invokeLater(() -> {
+            if (myShowHints) {
+                repaintHints();
             }
-            return newLine;
-        }
+        });
     }
 
     /**
-     * Merge tiles in a line
+     * Repaint the hint lines under the tiles and the bars along the edges of the board
      */
-    private Tile[] mergeLine(Tile[] oldLine) {
-        LinkedList<Tile> list = new LinkedList<>();
-        for (int i = 0; i < gridSize && !oldLine[i].isEmpty(); i++) {
-            int num = oldLine[i].value;
-            if (i < gridSize - 1 && oldLine[i].value == oldLine[i + 1].value) {
-                num *= 2;
-                myScore += num;
-                if (num == targetScore) {
-                    myWin = true;
-                }
-                i++;
+    private void repaintHints() {
+        repaint(0, getHeight() - HINT_HEIGHT, getWidth(), HINT_HEIGHT);
+        repaint(0, SCORE_HEIGHT, HINT_BAR, getHeight() - SCORE_HEIGHT);
+        repaint(getWidth() - HINT_BAR, SCORE_HEIGHT, HINT_BAR, getHeight() - SCORE_HEIGHT);
+        repaint(0, SCORE_HEIGHT, getWidth(), HINT_BAR);
+    }
+
+    /**
+     * Draw a bar on the side of the board the hinted move goes to, and under the tiles the
+     * perfect-play values or how deep the search got
+     */
+    private void drawHints(Graphics g, BoardSnapshot shown) {
+        int top = getHeight() - HINT_HEIGHT;
+        Direction move;
+        String[] lines;
+        if (mySolutions != null) {
+            byte[] cells = new byte[gridSize * gridSize];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = (byte) shown.get(i);
             }
-            list.add(new Tile(num));
-        }
-        if (list.isEmpty()) {
-            return oldLine;
+            move = mySolutions.bestForScore(cells);
+            if (move == null) {
+                return;
+            }
+            Direction forTarget = mySolutions.bestForTarget(cells);
+            double chance = mySolutions.targetChance(cells, forTarget);
+            lines = new String[]{
+                    String.format("Best: %s (+%.0f)", move, mySolutions.expectedScore(cells, move)),
+                    chance >= 1 ? targetScore + " reached"
+                            : chance > 0 ? String.format("To %d: %s (%.1f%%)", targetScore, forTarget, 100 * chance)
+                            : targetScore + " out of reach"};
         } else {
-            ensureSize(list, gridSize);
-            return list.toArray(new Tile[gridSize]);
+            HintSearch.Hint hint = myHintSearch.getHint();
+            if (hint == null || hint.getPosition() != shown) {
+                return; // Still searching
+            }
+            move = hint.getMove();
+            lines = new String[]{String.format("Hint: %s (%d plies)", move, hint.getDepth())};
+        }
+
+        g.setColor(HINT_COLOR);
+        switch (move) {
+            case LEFT:
+                g.fillRect(0, SCORE_HEIGHT, HINT_BAR, top - SCORE_HEIGHT);
+                break;
+            case RIGHT:
+                g.fillRect(getWidth() - HINT_BAR, SCORE_HEIGHT, HINT_BAR, top - SCORE_HEIGHT);
+                break;
+            case UP:
+                g.fillRect(0, SCORE_HEIGHT, getWidth(), HINT_BAR);
+                break;
+            case DOWN:
+                g.fillRect(0, top, getWidth(), HINT_BAR);
+                break;
+        }
+        g.setColor(TEXT_COLOR);
+        g.setFont(HINT_FONT);
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], TILES_MARGIN, top + 16 + 18 * i);
         }
     }
 
     /**
-     * Ensure the list has the required size by adding empty tiles
+     * Start or stop the AI playing on its own
      */
-    private static void ensureSize(List<Tile> l, int s) {
-        while (l.size() < s) {
-            l.add(new Tile());
+    private void toggleAutoplay() {
+        if (myAutoplay.isRunning()) {
+            myAutoplay.stop();
+        } else {
+            myAutoplay.start();
         }
     }
 
     /**
-     * Get a line of tiles from the grid
+     * Show the Win Dialog with options to Continue or Restart
      */
-    private Tile[] getLine(int index) {
-        Tile[] result = new Tile[gridSize];
-        for (int i = 0; i < gridSize; i++) {
-            result[i] = tileAt(i, index);
+    private void showWinDialog() {
+        int option = JOptionPane.showOptionDialog(
+                this,
+                "You reached " + targetScore + "! Do you want to continue playing?",
+                "You Win!",
+                JOptionPane.YES_NO_OPTION,
+                JOptionPane.INFORMATION_MESSAGE,
+                null,
+                new String[]{"Continue", "Restart"},
+                "Continue");
+        if (option == JOptionPane.NO_OPTION) {
+            resetGame();
+        } else {
+            myLoop.post(GameLoop.Command.CONTINUE, false); // Continue playing
         }
-        return result;
     }
 
     /**
-     * Set a line of tiles in the grid
+     * Reset the game to initial state
      */
-    private void setLine(int index, Tile[] re) {
-        System.arraycopy(re, 0, myTiles, index * gridSize, gridSize);
+    public void resetGame() {
+        myLoop.post(GameLoop.Command.RESET, false);
     }
 
     /**
-     * Add a new tile to a random empty position
+     * Stop the engine thread and wait until the current replay and the saved game are
+     * written, before the program exits
      */
-    private void addTile() {
-        List<Tile> list = availableSpace();
-        if (!list.isEmpty()) {
-            int index = (int) (Math.random() * list.size()) % list.size();
-            Tile emptyTile = list.get(index);
-            emptyTile.value = Math.random() < 0.9 ? 2 : 4;
+    void shutdown() {
+        if (myHintSearch != null) {
+            myHintSearch.close();
         }
+        myLoop.shutdown();
     }
 
     /**
-     * Get a list of all empty tiles
+     * Animate the move just played. A move still animating is cut short: its area is
+     * repainted from the new animation, which starts where the old one would have ended.
      */
-    private List<Tile> availableSpace() {
-        final List<Tile> list = new ArrayList<>(gridSize * gridSize);
-        for (Tile t : myTiles) {
-            if (t.isEmpty()) {
-                list.add(t);
+    private void startAnimation(BoardSnapshot next) {
+        if (myFrames.isRunning()) {
+            repaint(myAnimationBounds);
+        }
+        myAnimation = new TileAnimation(next);
+        Rectangle bounds = null;
+        int pop = (int) Math.ceil(myView.tileSize() * POP_SCALE / 2);
+        for (int i = 0; i < myAnimation.tileCount(); i++) {
+            int from = myAnimation.fromCell(i);
+            int to = myAnimation.toCell(i);
+            if (from != to || myAnimation.isMerged(to)) {
+                bounds = addCell(bounds, from, 0);
+                bounds = addCell(bounds, to, pop);
             }
         }
-        return list;
+        for (int cell = 0; cell < gridSize * gridSize; cell++) {
+            if (myAnimation.isSpawned(cell)) {
+                bounds = addCell(bounds, cell, 0);
+            }
+        }
+        myAnimationBounds = bounds;
+        myFrames.start(ANIMATION_NANOS);
     }
 
     /**
-     * Check if the grid is full
+     * Grow a rectangle to cover a cell and the given margin around it
      */
-    private boolean isFull() {
-        return availableSpace().isEmpty();
+    private Rectangle addCell(Rectangle bounds, int cell, int margin) {
+        int size = myView.tileSize();
+        Rectangle r = new Rectangle(myView.tileX(cell % gridSize) - margin, myView.tileY(cell / gridSize) - margin,
+                size + 2 * margin, size + 2 * margin);
+        if (bounds == null) {
+            return r;
+        }
+        bounds.add(r);
+        return bounds;
     }
 
     /**
-     * Check if the player can make any move
+     * Show the board as it is, when it jumps to a state the running animation did not lead to
      */
-    boolean canMove() {
-        if (!isFull()) {
-            return true;
-        }
-        for (int x = 0; x < gridSize; x++) {
-            for (int y = 0; y < gridSize; y++) {
-                Tile t = tileAt(x, y);
-                if ((x < gridSize - 1 && t.value == tileAt(x + 1, y).value)
-                        || (y < gridSize - 1 && t.value == tileAt(x, y + 1).value)) {
-                    return true;
-                }
-            }
+    private void stopAnimation() {
+        if (myFrames.isRunning()) {
+            myFrames.stop();
+            repaint(myAnimationBounds);
         }
-        return false;
     }
 
     /**
-     * Compare two lines to check if they are the same
+     * Repaint what the running animation covers, called on every frame
      */
-    private boolean compare(Tile[] line1, Tile[] line2) {
-        if (line1 == line2) {
-            return true;
-        } else if (line1.length != line2.length) {
-            return false;
-        }
-
-        for (int i = 0; i < line1.length; i++) {
-            if (line1[i].value != line2[i].value) {
-                return false;
-            }
+    private void animationFrame() {
+        repaint(myAnimationBounds);
+        if (myShowFrameTimes) {
+            repaint(0, 0, getWidth(), SCORE_HEIGHT);
         }
-        return true;
-    }
-
-    /**
-     * Get the tile at the specified position
-     */
-    private Tile tileAt(int x, int y) {
-        return myTiles[x + y * gridSize];
     }
 
     /**
@@ -418,155 +562,137 @@ public class Java2048 extends JPanel {
      */
     @Override
     public void paint(Graphics g) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
         super.paint(g);
+        BoardSnapshot shown = mySnapshot;
         g.setColor(BG_COLOR);
         g.fillRect(0, 0, this.getSize().width, this.getSize().height);
 
-        // Draw tiles
-        for (int y = 0; y < gridSize; y++) {
-            for (int x = 0; x < gridSize; x++) {
-                drawTile(g, myTiles[x + y * gridSize], x, y);
+        // Draw the tiles inside the area being repainted, keeping scrolled tiles off the score
+        Graphics2D board = (Graphics2D) g.create();
+        board.clipRect(0, SCORE_HEIGHT, getWidth(), getHeight() - SCORE_HEIGHT);
+        Rectangle clip = board.getClipBounds();
+        int firstX = Math.max(0, myView.columnAt(clip.x));
+        int lastX = Math.min(gridSize - 1, myView.columnAt(clip.x + clip.width - 1));
+        int firstY = Math.max(0, myView.rowAt(clip.y));
+        int lastY = Math.min(gridSize - 1, myView.rowAt(clip.y + clip.height - 1));
+        myTiles.setTileSize(myView.tileSize());
+        if (myView.isCellMode()) {
+            myTiles.drawCells(board, shown, firstX, lastX, firstY, lastY,
+                    myView.tileX(firstX), myView.tileY(firstY), myView.tileX(lastX + 1), myView.tileY(lastY + 1));
+        } else if (myFrames.isRunning()) {
+            drawAnimation(board, clip, firstX, lastX, firstY, lastY);
+        } else {
+            for (int y = firstY; y <= lastY; y++) {
+                for (int x = firstX; x <= lastX; x++) {
+                    drawTile(board, shown.exponentAt(x, y), x, y);
+                }
             }
         }
+        board.dispose();
+        myFrames.frameDrawn();
+        if (shown != myPainted) {
+            myPainted = shown;
+            myLatency.add(System.nanoTime() - shown.getInputNanos());
+        }
 
         // Draw Win/Lose overlay
-        if (myWin || myLose) {
+        if (shown.isWin() || shown.isLose()) {
             Graphics2D g2d = (Graphics2D) g;
-            g2d.setColor(new Color(255, 255, 255, 30));
+            g2d.setColor(OVERLAY_COLOR);
             g2d.fillRect(0, 0, getWidth(), getHeight());
-            g2d.setColor(new Color(78, 139, 202));
-            g2d.setFont(new Font(FONT_NAME, Font.BOLD, 48));
-            if (myWin) {
+            g2d.setColor(MESSAGE_COLOR);
+            g2d.setFont(TITLE_FONT);
+            if (shown.isWin()) {
                 g2d.drawString("You won!", getWidth() / 2 - 100, getHeight() / 2 - 50);
-                g2d.setFont(new Font(FONT_NAME, Font.PLAIN, 24));
+                g2d.setFont(MESSAGE_FONT);
                 g2d.drawString("Press ESC to restart or", getWidth() / 2 - 130, getHeight() / 2);
                 g2d.drawString("continue playing!", getWidth() / 2 - 100, getHeight() / 2 + 30);
             }
-            if (myLose) {
+            if (shown.isLose()) {
                 g2d.drawString("Game over!", getWidth() / 2 - 120, getHeight() / 2 - 50);
                 g2d.drawString("You lose!", getWidth() / 2 - 100, getHeight() / 2);
             }
         }
 
         // Draw Score
-        g.setColor(new Color(0x776e65));
-        g.setFont(new Font(FONT_NAME, Font.PLAIN, 18));
-        g.drawString("Score: " + myScore, TILES_MARGIN, 50);
+        g.setColor(TEXT_COLOR);
+        g.setFont(SCORE_FONT);
+        g.drawString("Score: " + shown.getScore(), TILES_MARGIN, 50);
+        if (myShowHints) {
+            drawHints(g, shown);
+        }
+        g.setFont(SCORE_FONT);
+        if (myShowFrameTimes) {
+            g.drawString(String.format("Frame %.1f/%.1f ms, input %.1f/%.1f ms (p50/p99)",
+                    myFrames.frameTimeMillis(50), myFrames.frameTimeMillis(99),
+                    myLatency.percentileMillis(50), myLatency.percentileMillis(99)), TILES_MARGIN, 24);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.PAINT.record(System.nanoTime() - start);
+        }
     }
 
     /**
-     * Draw a single tile
+     * Draw the tiles in the given range as the running animation has them: sliding from
+     * the board before the move, then merged tiles popping and the new tile growing
      */
-    private void drawTile(Graphics g2, Tile tile, int x, int y) {
-        Graphics2D g = (Graphics2D) g2;
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
-        int value = tile.value;
-        int xOffset = offsetCoors(x);
-        int yOffset = offsetCoors(y) + 60; // Shift down to make space for score
-        g.setColor(tile.getBackground());
-        g.fillRoundRect(xOffset, yOffset, TILE_SIZE, TILE_SIZE, 14, 14);
-        g.setColor(tile.getForeground());
-
-        final int size = value < 100 ? 36 : value < 1000 ? 32 : 24;
-        final Font font = new Font(FONT_NAME, Font.BOLD, size);
-        g.setFont(font);
-
-        String s = value > 0 ? String.valueOf(value) : "";
-        final FontMetrics fm = g.getFontMetrics(font);
-        final int w = fm.stringWidth(s);
-        final int h = fm.getAscent();
-
-        if (value != 0)
-            g.drawString(s, xOffset + (TILE_SIZE - w) / 2, yOffset + (TILE_SIZE + h) / 2 - 2);
+    private void drawAnimation(Graphics2D g, Rectangle clip, int firstX, int lastX, int firstY, int lastY) {
+        for (int y = firstY; y <= lastY; y++) {
+            for (int x = firstX; x <= lastX; x++) {
+                drawTile(g, 0, x, y);
+            }
+        }
+        int tileSize = myView.tileSize();
+        double t = myFrames.progress();
+        if (t < SLIDE_SHARE) {
+            double slide = t / SLIDE_SHARE;
+            slide = 1 - (1 - slide) * (1 - slide); // Ease out
+            for (int i = 0; i < myAnimation.tileCount(); i++) {
+                int from = myAnimation.fromCell(i);
+                int to = myAnimation.toCell(i);
+                int x = interpolate(myView.tileX(from % gridSize), myView.tileX(to % gridSize), slide);
+                int y = interpolate(myView.tileY(from / gridSize), myView.tileY(to / gridSize), slide);
+                if (clip.intersects(x, y, tileSize, tileSize)) {
+                    myTiles.draw(g, myAnimation.exponentOf(i), x, y);
+                }
+            }
+            return;
+        }
+
+        double pop = Math.sin(Math.PI * (t - SLIDE_SHARE) / (1 - SLIDE_SHARE));
+        double grow = (t - SLIDE_SHARE) / (1 - SLIDE_SHARE);
+        // Merged tiles last, so they pop over their neighbours
+        for (int pass = 0; pass < 2; pass++) {
+            for (int y = firstY; y <= lastY; y++) {
+                for (int x = firstX; x <= lastX; x++) {
+                    int cell = x + y * gridSize;
+                    int exponent = mySnapshot.exponentAt(x, y);
+                    if (exponent == 0 || myAnimation.isMerged(cell) != (pass == 1)) {
+                        continue;
+                    }
+                    double scale = myAnimation.isMerged(cell) ? 1 + POP_SCALE * pop
+                            : myAnimation.isSpawned(cell) ? grow : 1;
+                    int size = (int) Math.round(tileSize * scale);
+                    int inset = (tileSize - size) / 2;
+                    myTiles.draw(g, exponent, myView.tileX(x) + inset, myView.tileY(y) + inset, size);
+                }
+            }
+        }
     }
 
-    /**
-     * Calculate the pixel offset for a tile coordinate
-     */
-    private int offsetCoors(int arg) {
-        return arg * (TILES_MARGIN + TILE_SIZE) + TILES_MARGIN;
+    private static int interpolate(int from, int to, double fraction) {
+        return (int) Math.round(from + (to - from) * fraction);
     }
 
     /**
-     * Tile class representing each tile on the grid
+     * Draw a single tile from its cached sprite
      */
-    static class Tile {
-        int value;
-
-        public Tile() {
-            this(0);
-        }
-
-        public Tile(int num) {
-            value = num;
-        }
-
-        public boolean isEmpty() {
-            return value == 0;
-        }
-
-        public Color getForeground() {
-            return value < 16 ? new Color(0x776e65) : new Color(0xf9f6f2);
-        }
-
-        public Color getBackground() {
-            switch (value) {
-                case 2:
-                    return new Color(0xeee4da);
-                case 4:
-                    return new Color(0xede0c8);
-                case 8:
-                    return new Color(0xf2b179);
-                case 16:
-                    return new Color(0xf59563);
-                case 32:
-                    return new Color(0xf67c5f);
-                case 64:
-                    return new Color(0xf65e3b);
-                case 128:
-                    return new Color(0xedcf72);
-                case 256:
-                    return new Color(0xedcc61);
-                case 512:
-                    return new Color(0xedc850);
-                case 1024:
-                    return new Color(0xedc53f);
-                case 2048:
-                    return new Color(0xedc22e);
-                case 4096:
-                    return Color.DARK_GRAY;
-                default:
-                    if (value >= 8192 && value <= 131072) {
-                        // Shades of purple
-                        int index = (int) (Math.log(value) / Math.log(2)) - 13;
-                        Color[] purpleShades = {
-                                new Color(0xB19CD9), // Lavender
-                                new Color(0x8B008B), // Dark Magenta
-                                new Color(0x800080), // Purple
-                                new Color(0x4B0082), // Indigo
-                                new Color(0x2E0854)  // Dark Purple
-                        };
-                        index = Math.min(index, purpleShades.length - 1);
-                        return purpleShades[index];
-                    } else if (value >= 262144 && value <= 4194304) {
-                        // Shades of blue
-                        int index = (int) (Math.log(value) / Math.log(2)) - 18;
-                        Color[] blueShades = {
-                                new Color(0xADD8E6), // Light Blue
-                                new Color(0x0000FF), // Blue
-                                new Color(0x0000CD), // Medium Blue
-                                new Color(0x00008B), // Dark Blue
-                                new Color(0x000080)  // Navy
-                        };
-                        index = Math.min(index, blueShades.length - 1);
-                        return blueShades[index];
-                    } else if (value >= 4194304) {
-                        return Color.GRAY;
-                    } else {
-                        return new Color(0xcdc1b4); // Default tile color
-                    }
-            }
+    private void drawTile(Graphics g, int exponent, int x, int y) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        myTiles.draw((Graphics2D) g, exponent, myView.tileX(x), myView.tileY(y));
+        if (Metrics.ENABLED) {
+            Metrics.DRAW_TILE.record(System.nanoTime() - start);
         }
     }
 
@@ -577,7 +703,7 @@ public class Java2048 extends JPanel {
         public StartScreen() {
             setTitle("2048 Game - Start Screen");
             setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-            setSize(400, 350);
+            setSize(400, 420);
             setResizable(false);
             setLocationRelativeTo(null);
             setLayout(new GridBagLayout());
@@ -623,18 +749,33 @@ public class Java2048 extends JPanel {
             gbc.gridwidth = 2;
             add(undoCheckBox, gbc);
 
-            JButton startButton = new JButton("Start Game");
+            JCheckBox recordCheckBox = new JCheckBox("Record replays to " + REPLAY_DIR);
             gbc.gridx = 0;
             gbc.gridy = 4;
             gbc.gridwidth = 2;
-            gbc.insets = new Insets(20, 10, 10, 10);
+            add(recordCheckBox, gbc);
+
+            JButton startButton = new JButton("Start Game");
+            gbc.gridx = 0;
+            gbc.gridy = 5;
+            gbc.gridwidth = 2;
+            gbc.insets = new Insets(20, 10, 5, 10);
             add(startButton, gbc);
 
+            JButton resumeButton = new JButton("Resume Saved Game");
+            resumeButton.setEnabled(AutoSave.exists(SAVE_FILE));
+            gbc.gridx = 0;
+            gbc.gridy = 6;
+            gbc.gridwidth = 2;
+            gbc.insets = new Insets(5, 10, 10, 10);
+            add(resumeButton, gbc);
+
             startButton.addActionListener(e -> {
                 try {
                     int gridSize = Integer.parseInt(gridSizeField.getText());
                     int targetScore = Integer.parseInt(targetScoreField.getText());
                     boolean undoEnabled = undoCheckBox.isSelected();
+                    Path replayDir = null;
 
                     if (gridSize < 2) {
                         JOptionPane.showMessageDialog(this, "Grid size must be at least 2.");
@@ -644,12 +785,43 @@ public class Java2048 extends JPanel {
                         JOptionPane.showMessageDialog(this, "Target score must be a power of 2.");
                         return;
                     }
+                    if (recordCheckBox.isSelected()) {
+                        try {
+                            replayDir = Files.createDirectories(Paths.get(REPLAY_DIR));
+                        } catch (IOException ex) {
+                            JOptionPane.showMessageDialog(this, "Cannot create " + REPLAY_DIR + ": " + ex.getMessage());
+                            return;
+                        }
+                    }
                     dispose();
-                    SwingUtilities.invokeLater(() -> startGame(gridSize, targetScore, undoEnabled));
+                    Path dir = replayDir;
+                    SwingUtilities.invokeLater(() -> startGame(gridSize, targetScore, undoEnabled, dir));
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Please enter valid numbers.");
                 }
             });
+
+            resumeButton.addActionListener(e -> {
+                AutoSave.Saved saved;
+                Path replayDir = null;
+                try {
+                    saved = AutoSave.load(SAVE_FILE);
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(this, "Cannot resume " + SAVE_FILE + ": " + ex.getMessage());
+                    return;
+                }
+                if (recordCheckBox.isSelected()) {
+                    try {
+                        replayDir = Files.createDirectories(Paths.get(REPLAY_DIR));
+                    } catch (IOException ex) {
+                        JOptionPane.showMessageDialog(this, "Cannot create " + REPLAY_DIR + ": " + ex.getMessage());
+                        return;
+                    }
+                }
+                dispose();
+                Path dir = replayDir;
+                SwingUtilities.invokeLater(() -> showGame(new Java2048(saved, dir)));
+            });
         }
     }
 
@@ -657,18 +829,34 @@ public class Java2048 extends JPanel {
      * Start the game with the specified settings
      */
     public static void startGame(int gridSize, int targetScore, boolean undoEnabled) {
-        int preferredWidth = gridSize * (TILE_SIZE + TILES_MARGIN) + TILES_MARGIN;
-        int preferredHeight = preferredWidth + 100;
+        startGame(gridSize, targetScore, undoEnabled, null);
+    }
+
+    /**
+     * Start the game with the specified settings, recording every game into replayDir
+     * unless it is null
+     */
+    public static void startGame(int gridSize, int targetScore, boolean undoEnabled, Path replayDir) {
+        showGame(new Java2048(gridSize, targetScore, undoEnabled, replayDir));
+    }
+
+    /**
+     * Open a window for a game panel
+     */
+    private static void showGame(Java2048 gamePanel) {
         JFrame game = new JFrame();
         game.setTitle("2048 Game");
         game.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-        game.setSize(preferredWidth, preferredHeight);
-        game.setResizable(false);
-        game.setLayout(null); // Using absolute positioning
 
-        Java2048 gamePanel = new Java2048(gridSize, targetScore, undoEnabled);
-        gamePanel.setBounds(0, 0, preferredWidth, preferredHeight);
+        // The window fits boards up to MAX_VIEW_SIZE; larger ones scroll and zoom inside it
         game.add(gamePanel);
+        game.pack();
+        game.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                gamePanel.shutdown();
+            }
+        });
 
         game.setLocationRelativeTo(null);
         game.setVisible(true);
@@ -0,0 +1,309 @@
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the engine and renderer hot paths.
+ *
+ * Switched on with -Dgame.metrics=true. ENABLED is a constant, so while it is off the JIT
+ * drops every guarded clock read and record call and the hot paths run as if this class
+ * did not exist. While it is on, the figures are published as an MXBean under
+ * Java2048:type=Metrics, and -Dgame.metrics.log=n prints a summary line every n seconds.
+ *
+ * Histograms have eight buckets per power of two of nanoseconds, so a percentile is off
+ * by at most about 6%. Every figure is safe to record from any number of threads.
+ */
+public final class Metrics implements MetricsMXBean {
+    public static final boolean ENABLED = Boolean.getBoolean("game.metrics");
+    private static final long LOG_SECONDS = Long.getLong("game.metrics.log", 0);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Time of a single Grid.move() in each direction, by Direction ordinal
+    static final Histogram[] MOVE = {new Histogram(), new Histogram(), new Histogram(), new Histogram()};
+    static final Histogram ADD_TILE = new Histogram();
+    static final Histogram CAN_MOVE = new Histogram();
+    static final Histogram PAINT = new Histogram();
+    static final Histogram DRAW_TILE = new Histogram();
+
+    private static final LongAdder MOVES = new LongAdder();
+    private static final LongAdder MOVE_BYTES = new LongAdder();
+    private static volatile int undoDepth;
+    private static volatile long resetNanos = System.nanoTime();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(),
+                        new ObjectName("Java2048:type=Metrics"));
+            } catch (JMException e) {
+                System.err.println("Cannot register metrics: " + e);
+            }
+            if (LOG_SECONDS > 0) {
+                startLog();
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, to measure a stretch of code
+     */
+    static long allocatedBytes() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Note that step() played a move
+     *
+     * @param undoDepth moves that can now be undone
+     * @param bytes     allocated while playing it
+     */
+    static void moved(int undoDepth, long bytes) {
+        MOVES.increment();
+        MOVE_BYTES.add(bytes);
+        Metrics.undoDepth = undoDepth;
+    }
+
+    /**
+     * Note that Undo or Redo left the given number of moves to undo
+     */
+    static void undoChanged(int undoDepth) {
+        Metrics.undoDepth = undoDepth;
+    }
+
+    /**
+     * Distribution of durations in nanoseconds
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucketOf(Math.max(0, nanos)));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Values below SUB_BUCKETS have a bucket each; above, each power of two is split
+         * into SUB_BUCKETS by the bits after the leading one
+         */
+        private static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) << SUB_BITS | sub;
+        }
+
+        /**
+         * Middle of the values that fall into a bucket
+         */
+        private static double valueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket >>> SUB_BITS) - 1;
+            long low = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+            return low + ((1L << shift) - 1) / 2.0;
+        }
+
+        /**
+         * Value at percentile p, between 0 and 100, in nanoseconds; 0 when empty
+         */
+        double percentile(double p) {
+            long n = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return valueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        Summary summary() {
+            long n = count.sum();
+            return new Summary(n, n == 0 ? 0 : total.sum() / 1e3 / n, percentile(50) / 1e3,
+                    percentile(99) / 1e3, max.get() / 1e3);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            total.reset();
+            max.set(0);
+        }
+    }
+
+    /**
+     * Count and latencies in microseconds of one instrumented operation
+     */
+    public static final class Summary {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+
+        @ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros", "maxMicros"})
+        public Summary(long count, double meanMicros, double p50Micros, double p99Micros, double maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    @Override
+    public long getMoves() {
+        return MOVES.sum();
+    }
+
+    @Override
+    public double getMovesPerSecond() {
+        return MOVES.sum() / ((System.nanoTime() - resetNanos) / 1e9);
+    }
+
+    @Override
+    public Summary getMoveLeft() {
+        return MOVE[Direction.LEFT.ordinal()].summary();
+    }
+
+    @Override
+    public Summary getMoveRight() {
+        return MOVE[Direction.RIGHT.ordinal()].summary();
+    }
+
+    @Override
+    public Summary getMoveUp() {
+        return MOVE[Direction.UP.ordinal()].summary();
+    }
+
+    @Override
+    public Summary getMoveDown() {
+        return MOVE[Direction.DOWN.ordinal()].summary();
+    }
+
+    @Override
+    public Summary getAddTile() {
+        return ADD_TILE.summary();
+    }
+
+    @Override
+    public Summary getCanMove() {
+        return CAN_MOVE.summary();
+    }
+
+    @Override
+    public Summary getPaint() {
+        return PAINT.summary();
+    }
+
+    @Override
+    public Summary getDrawTile() {
+        return DRAW_TILE.summary();
+    }
+
+    @Override
+    public int getUndoDepth() {
+        return undoDepth;
+    }
+
+    @Override
+    public double getBytesPerMove() {
+        long moves = MOVES.sum();
+        return moves == 0 ? 0 : (double) MOVE_BYTES.sum() / moves;
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram h : MOVE) {
+            h.reset();
+        }
+        ADD_TILE.reset();
+        CAN_MOVE.reset();
+        PAINT.reset();
+        DRAW_TILE.reset();
+        MOVES.reset();
+        MOVE_BYTES.reset();
+        resetNanos = System.nanoTime();
+    }
+
+    /**
+     * Print a summary line to stderr every LOG_SECONDS, with the move rate over the interval
+     */
+    private static void startLog() {
+        ScheduledExecutorService log = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-log");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] last = {0, System.nanoTime()};
+        log.scheduleAtFixedRate(() -> {
+            long moves = MOVES.sum();
+            long now = System.nanoTime();
+            double rate = (moves - last[0]) / ((now - last[1]) / 1e9);
+            last[0] = moves;
+            last[1] = now;
+            long bytes = MOVE_BYTES.sum();
+            System.err.printf("metrics: %.0f moves/s, move p50/p99 L %s R %s U %s D %s us, addTile %s us, "
+                            + "canMove %s us, paint %s us, drawTile %s us, undo %d, %.0f B/move%n",
+                    rate, p50p99(MOVE[0]), p50p99(MOVE[1]), p50p99(MOVE[2]), p50p99(MOVE[3]),
+                    p50p99(ADD_TILE), p50p99(CAN_MOVE), p50p99(PAINT), p50p99(DRAW_TILE), undoDepth,
+                    moves == 0 ? 0.0 : (double) bytes / moves);
+        }, LOG_SECONDS, LOG_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static String p50p99(Histogram h) {
+        return String.format("%.1f/%.1f", h.percentile(50) / 1e3, h.percentile(99) / 1e3);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Engine and renderer timings as published over JMX by Metrics, under Java2048:type=Metrics
+ */
+public interface MetricsMXBean {
+    /**
+     * Moves played with step() since the start or the last reset
+     */
+    long getMoves();
+
+    /**
+     * Moves per second since the start or the last reset
+     */
+    double getMovesPerSecond();
+
+    Metrics.Summary getMoveLeft();
+
+    Metrics.Summary getMoveRight();
+
+    Metrics.Summary getMoveUp();
+
+    Metrics.Summary getMoveDown();
+
+    Metrics.Summary getAddTile();
+
+    Metrics.Summary getCanMove();
+
+    Metrics.Summary getPaint();
+
+    Metrics.Summary getDrawTile();
+
+    /**
+     * Moves that can be undone in the game that moved last
+     */
+    int getUndoDepth();
+
+    /**
+     * Bytes allocated per step(), slide, spawn and Undo snapshot together
+     */
+    double getBytesPerMove();
+
+    /**
+     * Start every count and histogram over
+     */
+    void reset();
+}
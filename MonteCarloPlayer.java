@@ -0,0 +1,319 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Pure Monte Carlo player: for every legal move, play random games to the end and pick
+ * the move with the best average final score.
+ *
+ * Rollouts are split across a ForkJoinPool. Every worker thread keeps its own random
+ * generator and board buffers, so rollouts neither contend nor allocate boards. 4x4
+ * boards roll out on BitBoard, other sizes on a Grid.
+ */
+public class MonteCarloPlayer implements Player {
+    public static final int DEFAULT_ROLLOUTS = 1000;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    // Rollouts a task plays itself instead of splitting further
+    private static final int LEAF_ROLLOUTS = 32;
+
+    private static final SplittableRandom SEEDS = new SplittableRandom();
+
+    private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial(Worker::new);
+
+    /**
+     * Pool shared by every player, one thread per core
+     */
+    private static class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Per-thread rollout state
+     */
+    private static class Worker {
+        final SplittableRandom random;
+        Grid grid;
+        final Direction[] legal = new Direction[DIRECTIONS.length];
+
+        Worker() {
+            synchronized (SEEDS) {
+                random = SEEDS.split();
+            }
+        }
+
+        Grid grid(int size) {
+            if (grid == null || grid.size() != size) {
+                grid = new Grid(size, 0);
+            }
+            return grid;
+        }
+    }
+
+    /**
+     * Result of analysing one position
+     */
+    public static class Report {
+        // Indexed by Direction.ordinal(); NaN for moves that do not change the board
+        public final double[] averageScore = new double[DIRECTIONS.length];
+        public Direction best;
+        public long rollouts;
+        public long nanos;
+        public int threads;
+
+        public double rolloutsPerSecond() {
+            return nanos == 0 ? 0 : rollouts * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Direction direction : DIRECTIONS) {
+                double average = averageScore[direction.ordinal()];
+                sb.append(direction).append('=');
+                sb.append(Double.isNaN(average) ? "-" : String.format("%.1f", average)).append(' ');
+            }
+            sb.append(String.format("best=%s, %d rollouts in %.1f ms on %d threads, %.0f rollouts/s",
+                    best, rollouts, nanos / 1e6, threads, rolloutsPerSecond()));
+            return sb.toString();
+        }
+    }
+
+    private final int rolloutsPerMove;
+    private final ForkJoinPool pool;
+    private Report lastReport;
+
+    public MonteCarloPlayer() {
+        this(DEFAULT_ROLLOUTS);
+    }
+
+    public MonteCarloPlayer(int rolloutsPerMove) {
+        this(rolloutsPerMove, PoolHolder.POOL);
+    }
+
+    public MonteCarloPlayer(int rolloutsPerMove, ForkJoinPool pool) {
+        if (rolloutsPerMove < 1) {
+            throw new IllegalArgumentException("Need at least one rollout per move: " + rolloutsPerMove);
+        }
+        this.rolloutsPerMove = rolloutsPerMove;
+        this.pool = pool;
+    }
+
+    @Override
+    public Direction chooseMove(GameEngine engine) {
+        return analyze(engine).best;
+    }
+
+    /**
+     * Report from the last call to chooseMove or analyze
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Run the rollouts for every legal move of the current position
+     */
+    public Report analyze(GameEngine engine) {
+        Grid grid = engine.getGrid();
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        // Legal first moves, with the board after each one
+        Direction[] legal = new Direction[DIRECTIONS.length];
+        int[] moveScores = new int[DIRECTIONS.length];
+        int legalCount = 0;
+        boolean bitBoard = BitBoard.fits(grid);
+        long board = bitBoard ? BitBoard.fromGrid(grid) : 0;
+        Grid scratch = bitBoard ? null : new Grid(grid.size(), 0);
+        Grid[] starts = new Grid[DIRECTIONS.length];
+        long[] startBoards = new long[DIRECTIONS.length];
+        for (Direction direction : DIRECTIONS) {
+            if (bitBoard) {
+                long next = BitBoard.move(board, direction);
+                if (next == board) {
+                    continue;
+                }
+                startBoards[legalCount] = next;
+                moveScores[legalCount] = BitBoard.score(board, direction);
+            } else {
+                scratch.copyFrom(grid);
+                if (!scratch.move(direction)) {
+                    continue;
+                }
+                starts[legalCount] = scratch;
+                moveScores[legalCount] = scratch.getLastScore();
+                scratch = new Grid(grid.size(), 0);
+            }
+            legal[legalCount++] = direction;
+        }
+
+        Arrays.fill(report.averageScore, Double.NaN);
+        if (legalCount > 0) {
+            Rollouts task = new Rollouts(bitBoard, startBoards, starts, legalCount, rolloutsPerMove,
+                    0, legalCount * rolloutsPerMove);
+            long[] totals = pool.invoke(task);
+            double bestAverage = -1;
+            for (int i = 0; i < legalCount; i++) {
+                double average = engine.getScore() + moveScores[i] + (double) totals[i] / rolloutsPerMove;
+                report.averageScore[legal[i].ordinal()] = average;
+                if (average > bestAverage) {
+                    bestAverage = average;
+                    report.best = legal[i];
+                }
+            }
+            report.rollouts = (long) legalCount * rolloutsPerMove;
+        }
+        report.nanos = System.nanoTime() - start;
+        report.threads = pool.getParallelism();
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Plays rollouts [from, to), where rollout i starts from move i / rolloutsPerMove.
+     * Returns the summed rollout scores per starting move.
+     */
+    @SuppressWarnings("serial") // Never serialized
+    private static class Rollouts extends RecursiveTask<long[]> {
+        private final boolean bitBoard;
+        private final long[] startBoards;
+        private final Grid[] starts;
+        private final int moves;
+        private final int rolloutsPerMove;
+        private final int from;
+        private final int to;
+
+        Rollouts(boolean bitBoard, long[] startBoards, Grid[] starts, int moves, int rolloutsPerMove,
+                 int from, int to) {
+            this.bitBoard = bitBoard;
+            this.startBoards = startBoards;
+            this.starts = starts;
+            this.moves = moves;
+            this.rolloutsPerMove = rolloutsPerMove;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > LEAF_ROLLOUTS) {
+                int mid = (from + to) >>> 1;
+                Rollouts left = new Rollouts(bitBoard, startBoards, starts, moves, rolloutsPerMove, from, mid);
+                Rollouts right = new Rollouts(bitBoard, startBoards, starts, moves, rolloutsPerMove, mid, to);
+                left.fork();
+                long[] totals = right.compute();
+                long[] other = left.join();
+                for (int i = 0; i < moves; i++) {
+                    totals[i] += other[i];
+                }
+                return totals;
+            }
+
+            Worker worker = WORKERS.get();
+            long[] totals = new long[moves];
+            for (int i = from; i < to; i++) {
+                int move = i / rolloutsPerMove;
+                totals[move] += bitBoard
+                        ? playOut(startBoards[move], worker)
+                        : playOut(starts[move], worker);
+            }
+            return totals;
+        }
+    }
+
+    /**
+     * Spawn, then play uniformly random moves until the game is over
+     *
+     * @return points scored during the rollout
+     */
+    static long playOut(long board, Worker worker) {
+        SplittableRandom random = worker.random;
+        long score = 0;
+        Direction[] legal = worker.legal;
+        board = spawn(board, random);
+        while (true) {
+            int legalCount = 0;
+            for (Direction direction : DIRECTIONS) {
+                if (BitBoard.move(board, direction) != board) {
+                    legal[legalCount++] = direction;
+                }
+            }
+            if (legalCount == 0) {
+                return score;
+            }
+            Direction direction = legal[random.nextInt(legalCount)];
+            score += BitBoard.score(board, direction);
+            board = spawn(BitBoard.move(board, direction), random);
+        }
+    }
+
+    /**
+     * Put a 2 or a 4 on a random empty cell of a bitboard
+     */
+    private static long spawn(long board, SplittableRandom random) {
+        int empty = BitBoard.emptyCount(board);
+        if (empty == 0) {
+            return board;
+        }
+        int k = random.nextInt(empty);
+        long exponent = random.nextInt(10) == 0 ? 2 : 1;
+        for (int i = 0; i < BitBoard.CELLS; i++) {
+            if (((board >>> (4 * i)) & 0xF) == 0 && k-- == 0) {
+                return board | (exponent << (4 * i));
+            }
+        }
+        return board;
+    }
+
+    /**
+     * Spawn, then play uniformly random moves on the worker's grid until the game is over
+     *
+     * @return points scored during the rollout
+     */
+    static long playOut(Grid start, Worker worker) {
+        SplittableRandom random = worker.random;
+        Grid grid = worker.grid(start.size());
+        grid.copyFrom(start);
+        long score = 0;
+        spawn(grid, random);
+        for (int legal = grid.legalMoves(); legal != 0; legal = grid.legalMoves()) {
+            for (int k = random.nextInt(Integer.bitCount(legal)); k > 0; k--) {
+                legal &= legal - 1;
+            }
+            grid.move(DIRECTIONS[Integer.numberOfTrailingZeros(legal)]);
+            score += grid.getLastScore();
+            spawn(grid, random);
+        }
+        return score;
+    }
+
+    private static void spawn(Grid grid, SplittableRandom random) {
+        int empty = grid.emptyCount();
+        if (empty > 0) {
+            grid.set(grid.nthEmpty(random.nextInt(empty)), random.nextInt(10) == 0 ? 2 : 1);
+        }
+    }
+
+    /**
+     * Play a game with Monte Carlo moves and print the analysis of every position
+     *
+     * Usage: java MonteCarloPlayer [gridSize] [rolloutsPerMove] [moves]
+     */
+    public static void main(String[] args) {
+        int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int rollouts = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROLLOUTS;
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        GameEngine engine = new GameEngine(gridSize, 2048, false);
+        MonteCarloPlayer player = new MonteCarloPlayer(rollouts);
+        for (int i = 0; i < moves && !engine.isTerminal(); i++) {
+            Report report = player.analyze(engine);
+            System.out.println(report);
+            engine.step(report.best);
+        }
+        System.out.println("score " + engine.getScore());
+    }
+}
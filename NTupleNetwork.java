@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Value function of a 4x4 board as a sum of n-tuple weights, for NTuplePlayer and
+ * NTupleTrainer.
+ *
+ * Each tuple is a fixed set of six cells. The exponents in those cells index a table of
+ * 16^6 weights, and the board's value is the sum of the weights its tuples pick, looked up
+ * for all eight rotations and reflections of every tuple so that symmetric boards are worth
+ * the same. The four tables take 256 MiB. They are memory-mapped from one file rather than
+ * read: opening them is instant, only the pages a game touches are ever loaded, and every
+ * JVM that maps the file shares the same pages, including one that is training the weights
+ * while others play with them.
+ *
+ * Updates are plain writes with no locking, so several training threads can share one
+ * network Hogwild-style. Two threads adding to the same weight at the same moment can lose
+ * one of the additions, which happens rarely enough among millions of weights not to matter.
+ *
+ * File format:
+ * <pre>
+ *   int    MAGIC ("NTUP"), big-endian
+ *   byte   VERSION
+ *   int    tuple count, then for each tuple an int cell count and its cells as bytes,
+ *          BitBoard nibble indexes
+ *   long   games trained, at GAMES_OFFSET
+ *          padding to HEADER_BYTES
+ *   float  the weights of every tuple in turn, 16^cells each, little-endian
+ * </pre>
+ * The weights are little-endian, the order of every common CPU, so lookups need no swapping.
+ */
+public final class NTupleNetwork {
+    public static final int MAGIC = 0x4e545550;
+    public static final byte VERSION = 1;
+    static final int HEADER_BYTES = 4096; // Keeps the tables page-aligned
+    static final int GAMES_OFFSET = 128;
+
+    // Cells of each tuple by nibble index, x + 4 * y: two straight lines of six and two
+    // rectangles of six, from the edge and one in
+    private static final int[][] TUPLES = {
+            {0, 1, 2, 3, 4, 5},
+            {4, 5, 6, 7, 8, 9},
+            {0, 1, 2, 4, 5, 6},
+            {4, 5, 6, 8, 9, 10},
+    };
+    private static final int SYMMETRIES = 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] maps;
+    private final FloatBuffer[] tables;
+    // For each tuple under each symmetry, the bit shifts of its cells and its table
+    private final int[][] featureShifts;
+    private final FloatBuffer[] featureTables;
+
+    private NTupleNetwork(FileChannel channel, boolean writable) throws IOException {
+        this.channel = channel;
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        this.header = channel.map(mode, 0, HEADER_BYTES);
+        this.maps = new MappedByteBuffer[TUPLES.length];
+        this.tables = new FloatBuffer[TUPLES.length];
+        long offset = HEADER_BYTES;
+        for (int t = 0; t < TUPLES.length; t++) {
+            long bytes = 4L << (4 * TUPLES[t].length);
+            maps[t] = channel.map(mode, offset, bytes);
+            tables[t] = maps[t].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            offset += bytes;
+        }
+
+        this.featureShifts = new int[TUPLES.length * SYMMETRIES][];
+        this.featureTables = new FloatBuffer[featureShifts.length];
+        for (int t = 0; t < TUPLES.length; t++) {
+            for (int s = 0; s < SYMMETRIES; s++) {
+                int[] shifts = new int[TUPLES[t].length];
+                for (int k = 0; k < shifts.length; k++) {
+                    shifts[k] = 4 * transform(TUPLES[t][k], s);
+                }
+                featureShifts[t * SYMMETRIES + s] = shifts;
+                featureTables[t * SYMMETRIES + s] = tables[t];
+            }
+        }
+    }
+
+    /**
+     * Where the weights are kept, set with -Dgame.weights=file
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("game.weights", "ntuple.weights"));
+    }
+
+    /**
+     * Map trained weights to play with
+     *
+     * @throws IOException if the file cannot be read or holds a different network
+     */
+    public static NTupleNetwork open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            checkHeader(channel);
+            return new NTupleNetwork(channel, false);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map weights to train, creating the file with every weight 0 if there is none
+     *
+     * @throws IOException if the file cannot be written or holds a different network
+     */
+    public static NTupleNetwork openForTraining(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel);
+            }
+            checkHeader(channel);
+            return new NTupleNetwork(channel, true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long fileBytes() {
+        long bytes = HEADER_BYTES;
+        for (int[] tuple : TUPLES) {
+            bytes += 4L << (4 * tuple.length);
+        }
+        return bytes;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.put(VERSION);
+        header.putInt(TUPLES.length);
+        for (int[] tuple : TUPLES) {
+            header.putInt(tuple.length);
+            for (int cell : tuple) {
+                header.put((byte) cell);
+            }
+        }
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        // Write the last byte so the file has its full length; the weights in between read
+        // as 0 and take no disk space until they are trained
+        channel.write(ByteBuffer.allocate(1), fileBytes() - 1);
+    }
+
+    private static void checkHeader(FileChannel channel) throws IOException {
+        if (channel.size() != fileBytes()) {
+            throw new IOException("Weights file has the wrong length");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Weights file cut short");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an n-tuple weights file");
+        }
+        int version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported weights version " + version);
+        }
+        boolean same = header.getInt() == TUPLES.length;
+        for (int t = 0; same && t < TUPLES.length; t++) {
+            same = header.getInt() == TUPLES[t].length;
+            for (int k = 0; same && k < TUPLES[t].length; k++) {
+                same = header.get() == TUPLES[t][k];
+            }
+        }
+        if (!same) {
+            throw new IOException("Weights file was trained with different tuples");
+        }
+    }
+
+    /**
+     * Nibble index of a cell after a rotation or reflection: mirror x, mirror y, then swap
+     * x and y, as the bits of the symmetry say
+     */
+    private static int transform(int cell, int symmetry) {
+        int x = cell % BitBoard.SIZE;
+        int y = cell / BitBoard.SIZE;
+        if ((symmetry & 1) != 0) {
+            x = BitBoard.SIZE - 1 - x;
+        }
+        if ((symmetry & 2) != 0) {
+            y = BitBoard.SIZE - 1 - y;
+        }
+        if ((symmetry & 4) != 0) {
+            int swap = x;
+            x = y;
+            y = swap;
+        }
+        return x + BitBoard.SIZE * y;
+    }
+
+    private static int index(long board, int[] shifts) {
+        int index = 0;
+        for (int k = 0; k < shifts.length; k++) {
+            index |= (int) (board >>> shifts[k] & 0xF) << (4 * k);
+        }
+        return index;
+    }
+
+    /**
+     * Estimated points still to come from a board, usually an afterstate: the board just
+     * after a move, before its spawn
+     */
+    public float value(long board) {
+        float sum = 0;
+        for (int f = 0; f < featureShifts.length; f++) {
+            sum += featureTables[f].get(index(board, featureShifts[f]));
+        }
+        return sum;
+    }
+
+    /**
+     * Move the value of a board by delta, spread evenly over the weights it is made of
+     */
+    public void update(long board, float delta) {
+        float share = delta / featureShifts.length;
+        for (int f = 0; f < featureShifts.length; f++) {
+            int index = index(board, featureShifts[f]);
+            FloatBuffer table = featureTables[f];
+            table.put(index, table.get(index) + share);
+        }
+    }
+
+    /**
+     * Games the weights have been trained on
+     */
+    public long getGames() {
+        return header.getLong(GAMES_OFFSET);
+    }
+
+    /**
+     * Count trained games. Only one thread at a time may call it.
+     */
+    public void addGames(long games) {
+        header.putLong(GAMES_OFFSET, header.getLong(GAMES_OFFSET) + games);
+    }
+
+    /**
+     * Write the trained weights through to the disk. Without it they still reach the file
+     * through the page cache, even if the JVM is killed, but not across a system crash.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer map : maps) {
+            map.force();
+        }
+    }
+
+    public long sizeBytes() {
+        return fileBytes();
+    }
+
+    /**
+     * Close the file; the mappings last until they are garbage collected
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
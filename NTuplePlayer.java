@@ -0,0 +1,51 @@
+/**
+ * Plays the move whose afterstate an NTupleNetwork values highest, counting the points the
+ * move scores. There is no search, only the network's lookups for each move, so it plays
+ * over a hundred thousand moves a second.
+ *
+ * The network only knows 4x4 boards with tiles up to 32768; anywhere else this player
+ * falls back to expectimax. Instances are not thread-safe, but any number of them can
+ * share a network.
+ */
+public class NTuplePlayer implements Player {
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final NTupleNetwork network;
+    private ExpectimaxPlayer fallback; // Created on the first board the network cannot hold
+
+    public NTuplePlayer(NTupleNetwork network) {
+        this.network = network;
+    }
+
+    @Override
+    public Direction chooseMove(GameEngine engine) {
+        Grid grid = engine.getGrid();
+        if (!BitBoard.fits(grid)) {
+            if (fallback == null) {
+                fallback = new ExpectimaxPlayer();
+            }
+            return fallback.chooseMove(engine);
+        }
+        return bestMove(network, BitBoard.fromGrid(grid));
+    }
+
+    /**
+     * Best move for a 4x4 bitboard, or null if no move changes it
+     */
+    public static Direction bestMove(NTupleNetwork network, long board) {
+        Direction best = null;
+        float bestValue = Float.NEGATIVE_INFINITY;
+        for (Direction direction : DIRECTIONS) {
+            long after = BitBoard.move(board, direction);
+            if (after == board) {
+                continue;
+            }
+            float value = BitBoard.score(board, direction) + network.value(after);
+            if (value > bestValue) {
+                bestValue = value;
+                best = direction;
+            }
+        }
+        return best;
+    }
+}
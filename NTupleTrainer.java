@@ -0,0 +1,171 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trains an NTupleNetwork by self-play with temporal-difference learning on afterstates.
+ *
+ * Each game is played greedily by the network being trained. After every move, the value
+ * of the previous afterstate is moved toward the points the move scored plus the value of
+ * the new afterstate, and the last afterstate of a game toward 0. Every thread plays its
+ * own games on BitBoard and writes straight into the shared, memory-mapped weights without
+ * locking, Hogwild-style, so training scales with the cores and every update is in the
+ * weights file as soon as it is made.
+ *
+ * Usage: java NTupleTrainer [games] [threads] [weightsFile] [learningRate]
+ */
+public class NTupleTrainer {
+    public static final float DEFAULT_LEARNING_RATE = 0.5f;
+
+    // Games between progress lines
+    private static final int REPORT_GAMES = 1000;
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final NTupleNetwork network;
+    private final float learningRate;
+
+    // Progress since the last line, guarded by this
+    private long reported;
+    private long totalScore;
+    private long moves;
+    private int[] tiles = new int[BitBoard.MAX_EXPONENT + 1]; // Games by their largest tile
+    private long reportNanos = System.nanoTime();
+
+    public NTupleTrainer(NTupleNetwork network, float learningRate) {
+        this.network = network;
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * Play and learn from the given number of games, spread over a fixed number of threads
+     */
+    public void train(long games, int threads) throws Exception {
+        AtomicLong unclaimed = new AtomicLong(games);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long seed = ThreadLocalRandom.current().nextLong();
+                futures.add(pool.submit(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    while (unclaimed.getAndDecrement() > 0) {
+                        playGame(random);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            unclaimed.set(0); // Stops the other threads if one failed
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Play one game, learning after every move
+     */
+    private void playGame(SplittableRandom random) {
+        long board = spawn(spawn(0, random), random);
+        long previous = 0; // Afterstate of the last move, 0 before the first
+        int score = 0;
+        int played = 0;
+        while (true) {
+            long bestAfter = 0;
+            int bestReward = 0;
+            float bestValue = Float.NEGATIVE_INFINITY;
+            for (Direction direction : DIRECTIONS) {
+                long after = BitBoard.move(board, direction);
+                if (after == board) {
+                    continue;
+                }
+                int reward = BitBoard.score(board, direction);
+                float value = network.value(after);
+                if (reward + value > bestReward + bestValue) {
+                    bestAfter = after;
+                    bestReward = reward;
+                    bestValue = value;
+                }
+            }
+            if (bestAfter == 0) {
+                break; // No move left
+            }
+            if (previous != 0) {
+                network.update(previous, learningRate * (bestReward + bestValue - network.value(previous)));
+            }
+            previous = bestAfter;
+            score += bestReward;
+            played++;
+            board = spawn(bestAfter, random);
+        }
+        if (previous != 0) {
+            network.update(previous, -learningRate * network.value(previous));
+        }
+        finished(score, played, BitBoard.maxExponent(board));
+    }
+
+    /**
+     * Put a 2, or a 4 one time in ten, on a random empty cell, as GameEngine does
+     */
+    private static long spawn(long board, SplittableRandom random) {
+        int k = random.nextInt(BitBoard.emptyCount(board));
+        for (int i = 0; i < BitBoard.CELLS; i++) {
+            if ((board >>> (4 * i) & 0xF) == 0 && k-- == 0) {
+                return BitBoard.withExponent(board, i, random.nextInt(10) == 0 ? 2 : 1);
+            }
+        }
+        throw new IllegalStateException("No empty cell");
+    }
+
+    /**
+     * Count a game and print a progress line every REPORT_GAMES
+     */
+    private synchronized void finished(int score, int played, int maxExponent) {
+        totalScore += score;
+        moves += played;
+        tiles[maxExponent]++;
+        network.addGames(1);
+        if (++reported < REPORT_GAMES) {
+            return;
+        }
+        long now = System.nanoTime();
+        StringBuilder reached = new StringBuilder();
+        int atLeast = 0;
+        for (int e = tiles.length - 1; e >= 11; e--) {
+            atLeast += tiles[e];
+            if (atLeast > 0) {
+                reached.append(String.format(", %d %.1f%%", 1 << e, 100.0 * atLeast / reported));
+            }
+        }
+        System.out.printf("%d games: average score %.0f%s, %.0f moves/s%n", network.getGames(),
+                (double) totalScore / reported, reached, moves / ((now - reportNanos) / 1e9));
+        reported = 0;
+        totalScore = 0;
+        moves = 0;
+        tiles = new int[tiles.length];
+        reportNanos = now;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long games = args.length > 0 ? Long.parseLong(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path file = args.length > 2 ? Paths.get(args[2]) : NTupleNetwork.defaultPath();
+        float learningRate = args.length > 3 ? Float.parseFloat(args[3]) : DEFAULT_LEARNING_RATE;
+
+        NTupleNetwork network = NTupleNetwork.openForTraining(file);
+        System.out.printf("Training %s (%d MiB, %d games so far) on %d threads%n", file,
+                network.sizeBytes() >> 20, network.getGames(), threads);
+        long start = System.nanoTime();
+        new NTupleTrainer(network, learningRate).train(games, threads);
+        network.force();
+        network.close();
+        System.out.printf("%d games in %.1f s%n", games, (System.nanoTime() - start) / 1e9);
+    }
+}
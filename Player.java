@@ -0,0 +1,12 @@
+/**
+ * Picks moves for a game, for the AI key in Java2048 and for headless runs
+ */
+@FunctionalInterface
+public interface Player {
+    /**
+     * Choose the next move for the current position
+     *
+     * @return the move to play, or null if no move changes the board
+     */
+    Direction chooseMove(GameEngine engine);
+}
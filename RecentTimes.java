@@ -0,0 +1,37 @@
+import java.util.Arrays;
+
+/**
+ * The last few durations of something that keeps happening, for showing percentiles of
+ * them while the game runs. Not thread-safe.
+ */
+public class RecentTimes {
+    private final long[] times;
+    private int count;
+
+    /**
+     * @param capacity how many of the latest durations are kept
+     */
+    public RecentTimes(int capacity) {
+        this.times = new long[capacity];
+    }
+
+    public void add(long nanos) {
+        times[count++ % times.length] = nanos;
+    }
+
+    /**
+     * Percentile of the kept durations in milliseconds, or 0 before any
+     *
+     * @param p percentile between 0 and 100
+     */
+    public double percentileMillis(double p) {
+        int n = Math.min(count, times.length);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(times, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))] / 1e6;
+    }
+}
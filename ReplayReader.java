@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reads a replay written by ReplayWriter and plays it back through GameEngine.
+ *
+ * A file that ends at a chunk boundary without the end marker, as left by a crash, reads
+ * as the moves written so far.
+ *
+ * Usage: java ReplayReader replay...
+ */
+public class ReplayReader implements AutoCloseable {
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final DataInputStream in;
+    private final int gridSize;
+    private final int targetScore;
+    private final long seed;
+
+    private final byte[] chunk = new byte[ReplayWriter.CHUNK_MOVES / 4];
+    private int chunkMoves;
+    private int position;
+    private boolean ended;
+
+    public ReplayReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != ReplayWriter.MAGIC) {
+            throw new IOException("Not a replay file");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != ReplayWriter.VERSION) {
+            throw new IOException("Unsupported replay version " + version);
+        }
+        gridSize = this.in.readInt();
+        targetScore = this.in.readInt();
+        seed = this.in.readLong();
+        if (gridSize < 2) {
+            throw new IOException("Bad grid size " + gridSize);
+        }
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    public int getTargetScore() {
+        return targetScore;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Next recorded move
+     *
+     * @return null at the end of the game
+     */
+    public Direction nextMove() throws IOException {
+        if (position == chunkMoves && !readChunk()) {
+            return null;
+        }
+        int move = (chunk[position >> 2] >> ((position & 3) * 2)) & 3;
+        position++;
+        return DIRECTIONS[move];
+    }
+
+    private boolean readChunk() throws IOException {
+        if (ended) {
+            return false;
+        }
+        int count;
+        try {
+            count = in.readInt();
+        } catch (EOFException e) {
+            // Never finished, but every chunk so far is complete
+            count = 0;
+        }
+        if (count == 0) {
+            ended = true;
+            return false;
+        }
+        if (count < 0 || count > ReplayWriter.CHUNK_MOVES) {
+            throw new IOException("Bad chunk length " + count);
+        }
+        in.readFully(chunk, 0, (count + 3) / 4);
+        chunkMoves = count;
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Play the remaining moves on a fresh engine
+     *
+     * @return the engine at the end of the game
+     * @throws IOException if the file is damaged or a move does not change the board
+     */
+    public GameEngine replay() throws IOException {
+        GameEngine engine = new GameEngine(gridSize, targetScore, false);
+        engine.resetGame(seed);
+        long moves = 0;
+        for (Direction direction = nextMove(); direction != null; direction = nextMove()) {
+            if (!engine.step(direction)) {
+                throw new IOException("Move " + moves + " (" + direction + ") does not change the board");
+            }
+            moves++;
+        }
+        return engine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            long start = System.nanoTime();
+            GameEngine engine;
+            try (ReplayReader reader = new ReplayReader(Files.newInputStream(path))) {
+                engine = reader.replay();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: %dx%d, %d moves, score %d, %s in %.1f ms (%.0f moves/s)%n", path,
+                    engine.getGridSize(), engine.getGridSize(), engine.getMoves(), engine.getScore(),
+                    engine.isTerminal() ? "game over" : "unfinished", seconds * 1e3, engine.getMoves() / seconds);
+        }
+    }
+}
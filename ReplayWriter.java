@@ -0,0 +1,221 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a game to a compact replay: the spawn seed plus every move packed into 2 bits.
+ * Spawns are not stored because GameEngine derives them from the seed.
+ *
+ * File format, big-endian:
+ * <pre>
+ *   int   MAGIC ("2048")
+ *   byte  VERSION
+ *   int   grid size
+ *   int   target score
+ *   long  seed
+ *   chunks of: int move count, then count / 4 rounded up bytes of moves
+ *   int   0 marks the end of the game
+ * </pre>
+ * Moves are Direction ordinals, four to a byte, first move in the low bits.
+ *
+ * Moves that can still be undone are held back, so the file only ever holds the line
+ * the game finally took. Full chunks are written by a shared background thread, so
+ * recording never waits on the disk unless the writer falls far behind.
+ */
+public class ReplayWriter implements AutoCloseable {
+    public static final int MAGIC = 0x32303438;
+    public static final byte VERSION = 1;
+
+    static final int CHUNK_MOVES = 4096;
+
+    // Chunks waiting for the background thread before recording threads block
+    private static final int QUEUED_CHUNKS = 256;
+
+    /**
+     * Writer thread shared by every recording
+     */
+    private static class WriterHolder {
+        static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUED_CHUNKS), runnable -> {
+                    Thread thread = new Thread(runnable, "replay-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> {
+                    // Block the recording thread until there is room, keeping writes in order
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    private final DataOutputStream out;
+
+    // Moves that can still be undone, oldest at pendingHead
+    private final byte[] pending;
+    private int pendingHead;
+    private int pendingCount;
+
+    // Moves of the chunk being filled
+    private byte[] chunk = new byte[CHUNK_MOVES / 4];
+    private int chunkMoves;
+
+    private long moves;
+    private Future<?> lastWrite;
+    private boolean finished;
+    private volatile IOException failure; // First write error; later writes are skipped
+
+    /**
+     * Write the header of a game that was just reset. Call moved() and undone() as the
+     * game is played; GameEngine.startRecording() does that.
+     *
+     * @param undoDepth most moves the game can undo
+     */
+    public ReplayWriter(OutputStream out, int gridSize, int targetScore, long seed, int undoDepth) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.pending = new byte[undoDepth];
+        submit(() -> {
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeInt(gridSize);
+            this.out.writeInt(targetScore);
+            this.out.writeLong(seed);
+        });
+    }
+
+    /**
+     * Record a move that changed the board
+     */
+    public void moved(Direction direction) {
+        if (finished) {
+            throw new IllegalStateException("Replay already finished");
+        }
+        moves++;
+        if (pending.length == 0) {
+            append(direction.ordinal());
+            return;
+        }
+        if (pendingCount == pending.length) {
+            // Too old to be undone
+            append(pending[pendingHead]);
+            pendingHead = (pendingHead + 1) % pending.length;
+            pendingCount--;
+        }
+        pending[(pendingHead + pendingCount) % pending.length] = (byte) direction.ordinal();
+        pendingCount++;
+    }
+
+    /**
+     * Drop the newest move after it was undone
+     */
+    public void undone() {
+        if (pendingCount == 0) {
+            throw new IllegalStateException("Undo past the recorded moves");
+        }
+        pendingCount--;
+        moves--;
+    }
+
+    /**
+     * Moves recorded so far
+     */
+    public long getMoves() {
+        return moves;
+    }
+
+    private void append(int move) {
+        chunk[chunkMoves >> 2] |= (byte) (move << ((chunkMoves & 3) * 2));
+        if (++chunkMoves == CHUNK_MOVES) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (chunkMoves == 0) {
+            return;
+        }
+        byte[] bytes = chunk;
+        int count = chunkMoves;
+        submit(() -> {
+            out.writeInt(count);
+            out.write(bytes, 0, (count + 3) / 4);
+        });
+        chunk = new byte[CHUNK_MOVES / 4];
+        chunkMoves = 0;
+    }
+
+    /**
+     * Write the remaining moves and the end marker, then close the stream, without
+     * waiting for it
+     *
+     * @return completes when the file is closed or a write failed; close() reports the error
+     */
+    public Future<?> finish() {
+        if (!finished) {
+            finished = true;
+            for (; pendingCount > 0; pendingCount--) {
+                append(pending[pendingHead]);
+                pendingHead = (pendingHead + 1) % pending.length;
+            }
+            flushChunk();
+            submit(() -> {
+                out.writeInt(0);
+                out.close();
+            });
+        }
+        return lastWrite;
+    }
+
+    /**
+     * Finish the replay and wait until it is on disk
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing replay", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * Queue a write for the background thread. After a failure the stream is closed and
+     * the remaining writes are skipped.
+     */
+    private void submit(Write write) {
+        lastWrite = WriterHolder.WRITER.submit(() -> {
+            if (failure != null) {
+                return;
+            }
+            try {
+                write.run();
+            } catch (IOException e) {
+                failure = e;
+                try {
+                    out.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Data-parallel steps of sliding one row of byte exponents, for Grid on wide boards.
+ *
+ * Grid decides which tiles merge; a kernel only packs bytes, compares neighbours and
+ * compares rows, many cells at a time. Byte arrays a kernel writes to must have PADDING
+ * bytes to spare past the cells in use, so whole vectors can be loaded and stored.
+ * Bit i of a word array stands for cell i, bit i & 63 of word i >>> 6.
+ */
+public interface RowKernel {
+    int PADDING = 128;
+
+    /**
+     * Copy the non-zero exponents of cells[from, from + length) to the start of tiles,
+     * in order
+     *
+     * @return number of tiles copied
+     */
+    int compact(byte[] cells, int from, int length, byte[] tiles);
+
+    /**
+     * Set the bit of every i below count - 1 where tiles[i] == tiles[i + 1], clearing the
+     * other bits of the words covering count cells
+     */
+    void equalPairs(byte[] tiles, int count, long[] equal);
+
+    /**
+     * Add one to the tiles whose bit is set in raise, then pack the tiles whose bit is set
+     * in keep to the start of tiles; keep has no bits at count or above
+     *
+     * @return number of tiles kept
+     */
+    int merge(byte[] tiles, int count, long[] raise, long[] keep);
+
+    /**
+     * Index of the last i below length where a[aFrom + i] != b[i], or -1 if there is none
+     */
+    int lastMismatch(byte[] a, int aFrom, byte[] b, int length);
+}
@@ -0,0 +1,127 @@
+import java.util.SplittableRandom;
+
+/**
+ * Checks that rows slid by the Vector API row kernel give exactly what the cell by cell
+ * loop gives.
+ *
+ * Only rows go through the kernel, so a move along the rows of a board is the same as the
+ * move along the columns of its transpose, which takes the scalar loop. Random boards of
+ * random sizes from VECTOR_THRESHOLD up, so every row length a vector can end on comes up,
+ * are filled at a random density with small tiles that merge a lot, and both copies are
+ * given the same random moves. After each one the transposed boards, scores, target flags,
+ * empty counts and legal moves must agree.
+ *
+ * Prints the first difference and exits with status 1 if there is one, or if the kernel
+ * is not loaded.
+ *
+ * Usage: java --add-modules jdk.incubator.vector RowKernelCheck [boards] [movesPerBoard]
+ */
+public class RowKernelCheck {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final int SIZES = 150; // Sizes tried from VECTOR_THRESHOLD up
+    private static final int MAX_EXPONENT = 6; // Largest tile placed
+    private static final int MAX_TARGET = 12; // Exponent of the largest target score
+
+    public static void main(String[] args) {
+        int boards = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int moves = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        if (!Grid.hasRowKernel()) {
+            System.out.println("No row kernel loaded; run with --add-modules jdk.incubator.vector");
+            System.exit(1);
+        }
+
+        long checked = 0;
+        for (int board = 0; board < boards; board++) {
+            SplittableRandom random = new SplittableRandom(board);
+            int size = Grid.VECTOR_THRESHOLD + random.nextInt(SIZES);
+            int target = 1 << (2 + random.nextInt(MAX_TARGET - 1));
+            Grid rows = new Grid(size, target);
+            Grid columns = new Grid(size, target);
+            fill(rows, columns, random);
+            for (int move = 0; move < moves; move++) {
+                Direction direction = DIRECTIONS[random.nextInt(DIRECTIONS.length)];
+                boolean changed = rows.move(direction);
+                boolean transposedChanged = columns.move(transposed(direction));
+                String difference = changed != transposedChanged ? "whether the board changed"
+                        : compare(rows, columns);
+                if (difference != null) {
+                    System.out.printf("Board %d (%dx%d): %s differs after %s, move %d%n",
+                            board, size, size, difference, direction, move);
+                    System.exit(1);
+                }
+                checked++;
+                if (random.nextInt(4) == 0) {
+                    // Refill some cells so rows stay busy as the board merges down
+                    int cell = random.nextInt(size * size);
+                    int exponent = 1 + random.nextInt(MAX_EXPONENT);
+                    rows.set(cell, exponent);
+                    columns.set(transposed(cell, size), exponent);
+                }
+            }
+        }
+        System.out.printf("%d boards from %dx%d, %d moves, no differences%n", boards, Grid.VECTOR_THRESHOLD,
+                Grid.VECTOR_THRESHOLD, checked);
+    }
+
+    /**
+     * Fill a board and its transpose with the same random tiles
+     */
+    private static void fill(Grid rows, Grid columns, SplittableRandom random) {
+        int size = rows.size();
+        int density = random.nextInt(101);
+        int largest = 1 + random.nextInt(MAX_EXPONENT);
+        for (int cell = 0; cell < size * size; cell++) {
+            if (random.nextInt(100) < density) {
+                int exponent = 1 + random.nextInt(largest);
+                rows.set(cell, exponent);
+                columns.set(transposed(cell, size), exponent);
+            }
+        }
+    }
+
+    private static int transposed(int cell, int size) {
+        return cell / size + cell % size * size;
+    }
+
+    private static Direction transposed(Direction direction) {
+        switch (direction) {
+            case LEFT:
+                return Direction.UP;
+            case RIGHT:
+                return Direction.DOWN;
+            case UP:
+                return Direction.LEFT;
+            case DOWN:
+                return Direction.RIGHT;
+            default:
+                throw new IllegalArgumentException("Unknown direction: " + direction);
+        }
+    }
+
+    /**
+     * What differs between a board and the transpose of the other, or null if nothing does
+     */
+    private static String compare(Grid rows, Grid columns) {
+        int size = rows.size();
+        for (int cell = 0; cell < size * size; cell++) {
+            if (rows.get(cell) != columns.get(transposed(cell, size))) {
+                return "cell " + cell;
+            }
+        }
+        if (rows.getLastScore() != columns.getLastScore()) {
+            return "score";
+        }
+        if (rows.lastHitTarget() != columns.lastHitTarget()) {
+            return "target flag";
+        }
+        if (rows.emptyCount() != columns.emptyCount()) {
+            return "empty count";
+        }
+        for (Direction direction : DIRECTIONS) {
+            if (rows.isLegal(direction) != columns.isLegal(transposed(direction))) {
+                return "whether " + direction + " is legal";
+            }
+        }
+        return null;
+    }
+}
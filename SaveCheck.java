@@ -0,0 +1,156 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that a saved game carries on exactly like the one it was saved from.
+ *
+ * Plays random games with random moves, Undo, Redo, branch switches, jumps back and
+ * continues, on a small Undo memory cap so history is dropped all the time. Every so often
+ * the game is saved and loaded, and the same commands are then given to both copies, which
+ * must keep the same board, score, flags, undo depth and history memory after every
+ * command and write the same bytes at the end. The loaded copy then plays on as the next
+ * original.
+ *
+ * Prints the first difference and exits with status 1 if there is one.
+ *
+ * Usage: java SaveCheck [games] [gridSize] [undoKiB]
+ */
+public class SaveCheck {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final int COMMANDS = 3000; // Per game
+    private static final int MAX_FOLLOW = 200; // Most commands compared after a round trip
+
+    private static int roundTrips;
+
+    public static void main(String[] args) throws IOException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int gridSize = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long undoBytes = (args.length > 2 ? Long.parseLong(args[2]) : 16) << 10;
+
+        for (int game = 0; game < games; game++) {
+            SplittableRandom random = new SplittableRandom(game);
+            GameEngine original = new GameEngine(gridSize, 1 << 30, true, Timeline.DEFAULT_DEPTH, undoBytes);
+            original.resetGame(random.nextLong());
+            int command = 0;
+            while (command < COMMANDS) {
+                int free = 1 + random.nextInt(MAX_FOLLOW);
+                for (int i = 0; i < free && command < COMMANDS; i++, command++) {
+                    play(original, null, random);
+                }
+                GameEngine loaded = roundTrip(original);
+                String difference = compare(original, loaded);
+                int follow = 1 + random.nextInt(MAX_FOLLOW);
+                for (int i = 0; i < follow && command < COMMANDS && difference == null; i++, command++) {
+                    play(original, loaded, random);
+                    difference = compare(original, loaded);
+                }
+                if (difference == null && !Arrays.equals(saved(original), saved(loaded))) {
+                    difference = "saved bytes";
+                }
+                if (difference != null) {
+                    System.out.printf("Game %d: %s differs after a round trip, %d commands in%n",
+                            game, difference, command);
+                    System.exit(1);
+                }
+                original = loaded;
+            }
+        }
+        System.out.printf("%d games of %dx%d, %d round trips, no differences%n", games, gridSize, gridSize,
+                roundTrips);
+    }
+
+    /**
+     * Give one random command to a game and, if there is one, the same to its copy
+     */
+    private static void play(GameEngine engine, GameEngine copy, SplittableRandom random) {
+        int roll = random.nextInt(100);
+        if (roll < 60 && !engine.isLose()) {
+            Direction direction = DIRECTIONS[random.nextInt(DIRECTIONS.length)];
+            engine.step(direction);
+            if (copy != null) {
+                copy.step(direction);
+            }
+        } else if (roll < 80) {
+            engine.performUndo();
+            if (copy != null) {
+                copy.performUndo();
+            }
+        } else if (roll < 90) {
+            engine.performRedo();
+            if (copy != null) {
+                copy.performRedo();
+            }
+        } else if (roll < 94) {
+            engine.nextBranch();
+            if (copy != null) {
+                copy.nextBranch();
+            }
+        } else if (roll < 98) {
+            int back = Math.min(random.nextInt(30), engine.undoSize());
+            engine.restore(ancestor(engine, back));
+            if (copy != null) {
+                copy.restore(ancestor(copy, back));
+            }
+        } else {
+            engine.continuePlaying();
+            if (copy != null) {
+                copy.continuePlaying();
+            }
+        }
+    }
+
+    private static Timeline.Snapshot ancestor(GameEngine engine, int back) {
+        Timeline.Snapshot snapshot = engine.getTimeline().getCurrent();
+        for (int i = 0; i < back; i++) {
+            snapshot = snapshot.getParent();
+        }
+        return snapshot;
+    }
+
+    private static GameEngine roundTrip(GameEngine engine) throws IOException {
+        roundTrips++;
+        return GameEngine.load(new DataInputStream(new ByteArrayInputStream(saved(engine))));
+    }
+
+    private static byte[] saved(GameEngine engine) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            engine.save(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * What differs between two games, or null if nothing does
+     */
+    private static String compare(GameEngine a, GameEngine b) {
+        byte[] cellsA = new byte[a.getGrid().cellCount()];
+        byte[] cellsB = new byte[b.getGrid().cellCount()];
+        a.getGrid().copyTo(cellsA);
+        b.getGrid().copyTo(cellsB);
+        if (!Arrays.equals(cellsA, cellsB)) {
+            return "board";
+        }
+        if (a.getScore() != b.getScore()) {
+            return "score";
+        }
+        if (a.getMoves() != b.getMoves()) {
+            return "move count";
+        }
+        if (a.isWin() != b.isWin() || a.isLose() != b.isLose()) {
+            return "win or lose flag";
+        }
+        if (a.undoSize() != b.undoSize()) {
+            return "undo depth";
+        }
+        if (a.getTimeline().memoryBytes() != b.getTimeline().memoryBytes()) {
+            return "history memory";
+        }
+        return null;
+    }
+}
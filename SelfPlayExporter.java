@@ -0,0 +1,243 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * Headless self-play that streams training data: one row per move, holding the board
+ * before the move, the move, the points it scored and whether it ended the game.
+ *
+ * Every thread plays its own games on GameEngine and fills a chunk of rows column by
+ * column, so each cell's exponents over consecutive positions sit together and deflate
+ * well. The thread that filled a chunk compresses it and appends it to the file under a
+ * lock, so compression runs on every core and memory stays at one chunk per thread however
+ * many rows are written. The rows of a chunk come from one thread in the order they were
+ * played, and a game can carry on into that thread's next chunk; chunks from different
+ * threads interleave.
+ *
+ * File format, big-endian:
+ * <pre>
+ *   int   MAGIC ("SPLY")
+ *   byte  VERSION
+ *   int   grid size
+ *   int   target score
+ *   int   most rows in a chunk
+ *   chunks of: int row count, then for each column an int length and the column
+ *              compressed with Deflater (zlib format)
+ *   int   0 marks the end of the file
+ * </pre>
+ * The columns of a chunk, in order, each with one entry per row:
+ * <pre>
+ *   cell i   byte  exponent of cell i before the move, one column per cell, row-major
+ *   move     byte  Direction ordinal
+ *   reward   int   points the move scored
+ *   terminal byte  1 if no move is left after the move and its spawn, else 0
+ * </pre>
+ *
+ * Usage: java SelfPlayExporter [gridSize] [rows] [threads] [targetScore] [random|expectimax|montecarlo|ntuple] [output]
+ */
+public class SelfPlayExporter {
+    public static final int MAGIC = 0x53504c59;
+    public static final byte VERSION = 1;
+
+    static final int MAX_CHUNK_ROWS = 1 << 16;
+    // Board bytes a chunk holds at most, which caps the rows of a chunk on large boards
+    static final int CHUNK_BOARD_BYTES = 1 << 22;
+
+    /**
+     * Rows of one chunk, held as columns
+     */
+    private static final class Chunk {
+        private final int cells;
+        private final int capacity;
+        private final byte[] boards; // Cell c of row r at c * capacity + r
+        private final byte[] moves;
+        private final byte[] rewards; // Big-endian ints
+        private final byte[] terminals;
+        private int rows;
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] buffer = new byte[1 << 16];
+        private final ByteArrayOutputStream column = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        Chunk(int cells, int capacity) {
+            this.cells = cells;
+            this.capacity = capacity;
+            this.boards = new byte[cells * capacity];
+            this.moves = new byte[capacity];
+            this.rewards = new byte[4 * capacity];
+            this.terminals = new byte[capacity];
+        }
+
+        void add(byte[] board, Direction move, int reward, boolean terminal) {
+            for (int c = 0; c < cells; c++) {
+                boards[c * capacity + rows] = board[c];
+            }
+            moves[rows] = (byte) move.ordinal();
+            int i = 4 * rows;
+            rewards[i] = (byte) (reward >>> 24);
+            rewards[i + 1] = (byte) (reward >>> 16);
+            rewards[i + 2] = (byte) (reward >>> 8);
+            rewards[i + 3] = (byte) reward;
+            terminals[rows] = (byte) (terminal ? 1 : 0);
+            rows++;
+        }
+
+        int size() {
+            return rows;
+        }
+
+        /**
+         * Compress the rows, append them to the file as one chunk and start over
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            compressed.reset();
+            DataOutputStream chunk = new DataOutputStream(compressed);
+            chunk.writeInt(rows);
+            for (int c = 0; c < cells; c++) {
+                deflate(chunk, boards, c * capacity, rows);
+            }
+            deflate(chunk, moves, 0, rows);
+            deflate(chunk, rewards, 0, 4 * rows);
+            deflate(chunk, terminals, 0, rows);
+            rows = 0;
+            synchronized (out) {
+                compressed.writeTo(out);
+            }
+        }
+
+        private void deflate(DataOutputStream chunk, byte[] data, int offset, int length) throws IOException {
+            column.reset();
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                column.write(buffer, 0, deflater.deflate(buffer));
+            }
+            chunk.writeInt(column.size());
+            column.writeTo(chunk);
+        }
+
+        void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Most rows in a chunk of the given board size
+     */
+    static int chunkRows(int gridSize) {
+        return Math.max(1, Math.min(MAX_CHUNK_ROWS, CHUNK_BOARD_BYTES / (gridSize * gridSize)));
+    }
+
+    /**
+     * Play until the given number of rows is written, spread over a fixed number of threads
+     *
+     * @return totals of the games, with a row counted as a move; the games still going at
+     * the end are in the moves but not the games
+     */
+    public static BatchRunner.Result run(int gridSize, int targetScore, long rows, int threads,
+                                         Supplier<Player> players, Path output) throws Exception {
+        int chunkRows = chunkRows(gridSize);
+        AtomicLong unclaimed = new AtomicLong(rows);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(gridSize);
+            out.writeInt(targetScore);
+            out.writeInt(chunkRows);
+
+            List<Future<BatchRunner.Result>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> play(gridSize, targetScore, players.get(), chunkRows, unclaimed, out)));
+            }
+            BatchRunner.Result total = new BatchRunner.Result();
+            for (Future<BatchRunner.Result> future : futures) {
+                total.add(future.get());
+            }
+            out.writeInt(0);
+            return total;
+        } finally {
+            unclaimed.set(0); // Stops the other threads if one failed
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Play games on one thread, a chunk of rows at a time, until no rows are left to claim
+     */
+    private static BatchRunner.Result play(int gridSize, int targetScore, Player player, int chunkRows,
+                                           AtomicLong unclaimed, DataOutputStream out) throws IOException {
+        GameEngine engine = new GameEngine(gridSize, targetScore, false);
+        Chunk chunk = new Chunk(gridSize * gridSize, chunkRows);
+        byte[] board = new byte[gridSize * gridSize];
+        BatchRunner.Result result = new BatchRunner.Result();
+        try {
+            engine.resetGame();
+            int claimed;
+            while ((claimed = (int) Math.min(chunkRows, unclaimed.getAndUpdate(r -> Math.max(0, r - chunkRows)))) > 0) {
+                while (chunk.size() < claimed) {
+                    Direction direction = engine.isTerminal() ? null : player.chooseMove(engine);
+                    if (direction == null) {
+                        finishGame(engine, result);
+                        engine.resetGame();
+                        continue;
+                    }
+                    engine.getGrid().copyTo(board);
+                    int score = engine.getScore();
+                    engine.step(direction);
+                    chunk.add(board, direction, engine.getScore() - score, engine.isTerminal());
+                    result.moves++;
+                }
+                chunk.writeTo(out);
+            }
+            return result;
+        } finally {
+            chunk.close();
+        }
+    }
+
+    private static void finishGame(GameEngine engine, BatchRunner.Result result) {
+        result.games++;
+        result.totalScore += engine.getScore();
+        int size = engine.getGridSize();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                result.bestTile = Math.max(result.bestTile, engine.valueAt(x, y));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long rows = args.length > 1 ? Long.parseLong(args[1]) : 10_000_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int targetScore = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+        String player = args.length > 4 ? args[4] : "random";
+        Path output = Paths.get(args.length > 5 ? args[5] : String.format("selfplay-%dx%d.data", gridSize, gridSize));
+
+        long start = System.nanoTime();
+        BatchRunner.Result result = run(gridSize, targetScore, rows, threads, BatchRunner.playerFactory(player), output);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long bytes = Files.size(output);
+        System.out.printf("%d rows from %d finished games in %.2f s on %d threads%n",
+                result.moves, result.games, seconds, threads);
+        System.out.printf("%.0f rows/s, %d bytes written to %s, %.2f bytes/row%n",
+                result.moves / seconds, bytes, output, result.moves == 0 ? 0.0 : (double) bytes / result.moves);
+    }
+}
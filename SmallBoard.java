@@ -0,0 +1,241 @@
+import java.util.Arrays;
+
+/**
+ * Boards of up to 3x3 packed into one long, for the exact solver and its table.
+ *
+ * Cells are four bits each, holding the exponent, and cell (x, y) lives at nibble
+ * x + size * y as in BitBoard, so every row is one word of 4 * size bits. Moves, scores
+ * and the eight symmetries of the square are lookups into per-row tables. The canonical
+ * key of a board is the smallest key among its symmetries; mirrored and rotated boards
+ * have the same value under best play, so they share it.
+ */
+public final class SmallBoard {
+    public static final int MAX_SIZE = 3;
+
+    /**
+     * Largest exponent a nibble can hold. A 3x3 game never gets past 10.
+     */
+    public static final int MAX_EXPONENT = 15;
+
+    // Transform bits: mirror x, mirror y, then swap x and y
+    private static final int MIRROR_X = 1;
+    private static final int MIRROR_Y = 2;
+    private static final int TRANSPOSE = 4;
+    private static final int SYMMETRIES = 8;
+
+    private static final SmallBoard[] BOARDS = new SmallBoard[MAX_SIZE + 1];
+
+    private final int size;
+    private final int rowBits;
+    private final int rowMask;
+
+    private final short[] rowLeft;
+    private final short[] rowRight;
+    private final int[] scoreLeft;
+    private final int[] scoreRight;
+    private final int[] rowSum; // Sum of the tile values
+    private final byte[] rowMax; // Largest exponent
+    // Where row y lands under transform t, at [t][y << rowBits | row]
+    private final long[][] transforms;
+
+    /**
+     * Tables for the given board size, built once
+     */
+    public static synchronized SmallBoard of(int size) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be 2 to " + MAX_SIZE + ": " + size);
+        }
+        if (BOARDS[size] == null) {
+            BOARDS[size] = new SmallBoard(size);
+        }
+        return BOARDS[size];
+    }
+
+    private SmallBoard(int size) {
+        this.size = size;
+        this.rowBits = 4 * size;
+        int rows = 1 << rowBits;
+        this.rowMask = rows - 1;
+        this.rowLeft = new short[rows];
+        this.rowRight = new short[rows];
+        this.scoreLeft = new int[rows];
+        this.scoreRight = new int[rows];
+        this.rowSum = new int[rows];
+        this.rowMax = new byte[rows];
+        this.transforms = new long[SYMMETRIES][size << rowBits];
+
+        int[] line = new int[size];
+        int[] reversed = new int[size];
+        int[] out = new int[size];
+        for (int row = 0; row < rows; row++) {
+            int sum = 0;
+            int max = 0;
+            for (int i = 0; i < size; i++) {
+                line[i] = (row >>> (4 * i)) & 0xF;
+                reversed[size - 1 - i] = line[i];
+                sum += Grid.valueOf(line[i]);
+                max = Math.max(max, line[i]);
+            }
+            rowSum[row] = sum;
+            rowMax[row] = (byte) max;
+            scoreLeft[row] = slide(line, out);
+            rowLeft[row] = (short) pack(out, false);
+            scoreRight[row] = slide(reversed, out);
+            rowRight[row] = (short) pack(out, true);
+
+            for (int t = 0; t < SYMMETRIES; t++) {
+                for (int y = 0; y < size; y++) {
+                    long moved = 0;
+                    for (int x = 0; x < size; x++) {
+                        int tx = (t & MIRROR_X) != 0 ? size - 1 - x : x;
+                        int ty = (t & MIRROR_Y) != 0 ? size - 1 - y : y;
+                        if ((t & TRANSPOSE) != 0) {
+                            int swap = tx;
+                            tx = ty;
+                            ty = swap;
+                        }
+                        moved |= (long) line[x] << (4 * (tx + size * ty));
+                    }
+                    transforms[t][y << rowBits | row] = moved;
+                }
+            }
+        }
+    }
+
+    /**
+     * Slide and merge a line toward index 0, by the same rules as Grid
+     *
+     * @return points scored
+     */
+    private static int slide(int[] line, int[] out) {
+        int score = 0;
+        int n = 0;
+        int last = 0;
+        Arrays.fill(out, 0);
+        for (int e : line) {
+            if (e == 0) {
+                continue;
+            }
+            if (last == e && e < MAX_EXPONENT) {
+                out[n - 1] = e + 1;
+                score += Grid.valueOf(e + 1);
+                last = 0;
+            } else {
+                out[n++] = e;
+                last = e;
+            }
+        }
+        return score;
+    }
+
+    private static int pack(int[] line, boolean reversed) {
+        int row = 0;
+        for (int i = 0; i < line.length; i++) {
+            row |= line[i] << (4 * (reversed ? line.length - 1 - i : i));
+        }
+        return row;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cellCount() {
+        return size * size;
+    }
+
+    /**
+     * Key of a board given as row-major exponents
+     *
+     * @throws IllegalArgumentException if an exponent does not fit in a nibble
+     */
+    public long key(byte[] cells) {
+        long key = 0;
+        for (int i = 0; i < size * size; i++) {
+            if (cells[i] < 0 || cells[i] > MAX_EXPONENT) {
+                throw new IllegalArgumentException("Exponent out of range: " + cells[i]);
+            }
+            key |= (long) cells[i] << (4 * i);
+        }
+        return key;
+    }
+
+    public static int get(long key, int index) {
+        return (int) (key >>> (4 * index)) & 0xF;
+    }
+
+    public static long set(long key, int index, int exponent) {
+        return (key & ~(0xFL << (4 * index))) | (long) exponent << (4 * index);
+    }
+
+    private int row(long key, int y) {
+        return (int) (key >>> (rowBits * y)) & rowMask;
+    }
+
+    private long transform(long key, int t) {
+        long[] table = transforms[t];
+        long result = 0;
+        for (int y = 0; y < size; y++) {
+            result |= table[y << rowBits | row(key, y)];
+        }
+        return result;
+    }
+
+    /**
+     * Smallest key among the board's rotations and reflections
+     */
+    public long canonical(long key) {
+        long min = key;
+        for (int t = 1; t < SYMMETRIES; t++) {
+            min = Math.min(min, transform(key, t));
+        }
+        return min;
+    }
+
+    /**
+     * Board after sliding and merging, without a spawn; the same key if nothing moves
+     */
+    public long move(long key, Direction direction) {
+        boolean vertical = direction == Direction.UP || direction == Direction.DOWN;
+        short[] table = direction == Direction.LEFT || direction == Direction.UP ? rowLeft : rowRight;
+        long board = vertical ? transform(key, TRANSPOSE) : key;
+        long result = 0;
+        for (int y = 0; y < size; y++) {
+            result |= (long) (table[row(board, y)] & rowMask) << (rowBits * y);
+        }
+        return vertical ? transform(result, TRANSPOSE) : result;
+    }
+
+    /**
+     * Points the move scores
+     */
+    public int score(long key, Direction direction) {
+        boolean vertical = direction == Direction.UP || direction == Direction.DOWN;
+        int[] table = direction == Direction.LEFT || direction == Direction.UP ? scoreLeft : scoreRight;
+        long board = vertical ? transform(key, TRANSPOSE) : key;
+        int score = 0;
+        for (int y = 0; y < size; y++) {
+            score += table[row(board, y)];
+        }
+        return score;
+    }
+
+    /**
+     * Sum of the tile values. Every turn adds 2 or 4 to it.
+     */
+    public int sum(long key) {
+        int sum = 0;
+        for (int y = 0; y < size; y++) {
+            sum += rowSum[row(key, y)];
+        }
+        return sum;
+    }
+
+    public int maxExponent(long key) {
+        int max = 0;
+        for (int y = 0; y < size; y++) {
+            max = Math.max(max, rowMax[row(key, y)]);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Solves 2x2 and 3x3 games exactly and writes the result as a table for SolutionTable.
+ *
+ * For every reachable position, reduced to its canonical key, the table holds the score
+ * still to come under the play that maximizes it, and the chance of reaching a tile of
+ * the target score under the play that maximizes that. Spawns follow GameEngine.addTile():
+ * a uniformly chosen empty cell, a 4 one time in ten.
+ *
+ * Every turn adds 2 or 4 to the sum of the tiles, so positions fall into layers by that
+ * sum and every move leads to one of the next two layers. The solver first walks the
+ * layers up from the opening positions, writing each one's sorted keys to the table file
+ * as soon as it is complete, then walks them back down, valuing each layer from the two
+ * above it and writing the values next to the keys. Only three layers are in memory at
+ * a time; the rest of the memo lives in the file. A 3x3 game has about 49 million
+ * positions and at most about 100 thousand in a layer.
+ *
+ * File format, big-endian:
+ * <pre>
+ *   int    MAGIC ("SOLV")
+ *   byte   VERSION
+ *   int    board size
+ *   int    target score
+ *   long   number of positions, n
+ *   int    number of layers
+ *          padding to HEADER_BYTES
+ *   long   n canonical keys, by layer and sorted within each
+ *   float  n expected scores still to come, in key order
+ *   float  n chances of reaching the target, in key order
+ *   then for every layer: int tile sum, long index of its first key, int key count
+ * </pre>
+ *
+ * Usage: java SmallBoardSolver size [targetScore] [output]
+ */
+public class SmallBoardSolver {
+    public static final int MAGIC = 0x534f4c56;
+    public static final byte VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int LAYER_BYTES = 16;
+
+    // Chance that a spawned tile is a 4, as in GameEngine.addTile()
+    static final double FOUR_CHANCE = 0.1;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    /**
+     * Positions with the same tile sum
+     */
+    private static final class Layer {
+        final int sum;
+        final long first; // Index of the first key in the file
+        final int count;
+        long[] keys;
+        float[] scores;
+        float[] chances;
+
+        Layer(int sum, long first, int count) {
+            this.sum = sum;
+            this.first = first;
+            this.count = count;
+        }
+
+        int indexOf(long key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index < 0) {
+                throw new IllegalStateException("Position " + Long.toHexString(key) + " missing from layer " + sum);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Set of keys by open addressing; 0 marks a free slot, which is safe since no position
+     * has an empty board
+     */
+    private static final class KeySet {
+        private long[] slots = new long[1 << 10];
+        private int count;
+
+        void add(long key) {
+            if (2 * count >= slots.length) {
+                long[] old = slots;
+                slots = new long[old.length * 2];
+                count = 0;
+                for (long k : old) {
+                    if (k != 0) {
+                        add(k);
+                    }
+                }
+            }
+            int mask = slots.length - 1;
+            int i = (int) GameRandom.mix(key) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == key) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = key;
+            count++;
+        }
+
+        long[] toSortedArray() {
+            long[] keys = new long[count];
+            int n = 0;
+            for (long k : slots) {
+                if (k != 0) {
+                    keys[n++] = k;
+                }
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+    }
+
+    private final SmallBoard board;
+    private final int targetScore;
+    private final int targetExponent;
+    private final List<Layer> layers = new ArrayList<>(); // By ascending sum
+    private long states;
+
+    public SmallBoardSolver(int size, int targetScore) {
+        this.board = SmallBoard.of(size);
+        this.targetScore = targetScore;
+        this.targetExponent = Grid.exponentOf(targetScore);
+    }
+
+    /**
+     * Solve every position and write the table, replacing the output file only once it
+     * is complete
+     */
+    public void solve(Path output) throws IOException {
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            enumerate(channel);
+            evaluate(channel);
+            writeIndex(channel);
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getStates() {
+        return states;
+    }
+
+    /**
+     * Find every reachable position, layer by layer from the openings, and write the keys
+     */
+    private void enumerate(FileChannel channel) throws IOException {
+        Map<Integer, KeySet> pending = new HashMap<>();
+        int cells = board.cellCount();
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j++) {
+                for (int e = 1; e <= 2 && i != j; e++) {
+                    for (int f = 1; f <= 2; f++) {
+                        addPosition(pending, SmallBoard.set(SmallBoard.set(0, i, e), j, f));
+                    }
+                }
+            }
+        }
+        while (!pending.isEmpty()) {
+            // The lowest layer left is complete, since every move raises the sum
+            int sum = Collections.min(pending.keySet());
+            long[] keys = pending.remove(sum).toSortedArray();
+            layers.add(new Layer(sum, states, keys.length));
+            write(channel, HEADER_BYTES + 8 * states, keys.length * 8, buffer -> buffer.asLongBuffer().put(keys));
+            states += keys.length;
+
+            for (long key : keys) {
+                for (Direction direction : DIRECTIONS) {
+                    long moved = board.move(key, direction);
+                    if (moved == key) {
+                        continue;
+                    }
+                    for (int i = 0; i < cells; i++) {
+                        if (SmallBoard.get(moved, i) == 0) {
+                            addPosition(pending, SmallBoard.set(moved, i, 1));
+                            addPosition(pending, SmallBoard.set(moved, i, 2));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addPosition(Map<Integer, KeySet> pending, long key) {
+        if (board.maxExponent(key) == SmallBoard.MAX_EXPONENT) {
+            throw new IllegalStateException("Tile too large for the key: " + Long.toHexString(key));
+        }
+        pending.computeIfAbsent(board.sum(key), sum -> new KeySet()).add(board.canonical(key));
+    }
+
+    /**
+     * Value every layer from the top down, from the two layers above it
+     */
+    private void evaluate(FileChannel channel) throws IOException {
+        TreeMap<Integer, Layer> above = new TreeMap<>();
+        for (int l = layers.size() - 1; l >= 0; l--) {
+            Layer layer = layers.get(l);
+            long[] keys = new long[layer.count];
+            read(channel, HEADER_BYTES + 8 * layer.first, layer.count * 8, buffer -> buffer.asLongBuffer().get(keys));
+            layer.keys = keys;
+            layer.scores = new float[layer.count];
+            layer.chances = new float[layer.count];
+            Layer two = above.get(layer.sum + 2);
+            Layer four = above.get(layer.sum + 4);
+            IntStream.range(0, layer.count).parallel().forEach(i -> value(layer, i, two, four));
+
+            write(channel, HEADER_BYTES + 8 * states + 4 * layer.first, layer.count * 4,
+                    buffer -> buffer.asFloatBuffer().put(layer.scores));
+            write(channel, HEADER_BYTES + 12 * states + 4 * layer.first, layer.count * 4,
+                    buffer -> buffer.asFloatBuffer().put(layer.chances));
+            above.put(layer.sum, layer);
+            // Lower layers only reach the two above them
+            above.tailMap(layer.sum + 2, false).clear();
+        }
+    }
+
+    /**
+     * Best expected score and best chance of reaching the target for one position
+     */
+    private void value(Layer layer, int index, Layer two, Layer four) {
+        long key = layer.keys[index];
+        boolean reached = board.maxExponent(key) >= targetExponent;
+        double bestScore = 0;
+        double bestChance = reached ? 1 : 0;
+        for (Direction direction : DIRECTIONS) {
+            long moved = board.move(key, direction);
+            if (moved == key) {
+                continue;
+            }
+            double score = 0;
+            double chance = 0;
+            int empty = 0;
+            for (int i = 0; i < board.cellCount(); i++) {
+                if (SmallBoard.get(moved, i) != 0) {
+                    continue;
+                }
+                empty++;
+                int a = two.indexOf(board.canonical(SmallBoard.set(moved, i, 1)));
+                int b = four.indexOf(board.canonical(SmallBoard.set(moved, i, 2)));
+                score += (1 - FOUR_CHANCE) * two.scores[a] + FOUR_CHANCE * four.scores[b];
+                chance += (1 - FOUR_CHANCE) * two.chances[a] + FOUR_CHANCE * four.chances[b];
+            }
+            bestScore = Math.max(bestScore, board.score(key, direction) + score / empty);
+            if (!reached) {
+                bestChance = Math.max(bestChance, chance / empty);
+            }
+        }
+        layer.scores[index] = (float) bestScore;
+        layer.chances[index] = (float) bestChance;
+    }
+
+    /**
+     * Write the layer index after the values, then the header
+     */
+    private void writeIndex(FileChannel channel) throws IOException {
+        write(channel, HEADER_BYTES + 16 * states, layers.size() * LAYER_BYTES, buffer -> {
+            for (Layer layer : layers) {
+                buffer.putInt(layer.sum);
+                buffer.putLong(layer.first);
+                buffer.putInt(layer.count);
+            }
+        });
+        write(channel, 0, HEADER_BYTES, buffer -> {
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            buffer.putInt(board.size());
+            buffer.putInt(targetScore);
+            buffer.putLong(states);
+            buffer.putInt(layers.size());
+        });
+    }
+
+    private interface Fill {
+        void fill(ByteBuffer buffer);
+    }
+
+    private static void write(FileChannel channel, long position, int bytes, Fill fill) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        fill.fill(buffer);
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void read(FileChannel channel, long position, int bytes, Fill fill) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Table file cut short");
+            }
+        }
+        buffer.flip();
+        fill.fill(buffer);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = Integer.parseInt(args[0]);
+        int targetScore = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        Path output = args.length > 2 ? Paths.get(args[2]) : SolutionTable.defaultPath(size, targetScore);
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+
+        long start = System.nanoTime();
+        SmallBoardSolver solver = new SmallBoardSolver(size, targetScore);
+        solver.solve(output);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        SolutionTable table = SolutionTable.open(output);
+        System.out.printf("%dx%d: %d positions in %d layers, %.1f s, written to %s (%d MiB)%n", size, size,
+                solver.getStates(), solver.layers.size(), seconds, output, Files.size(output) >> 20);
+        System.out.printf("From the opening, best play scores %.2f on average and reaches %d %.4f%% of the time%n",
+                table.openingScore(), targetScore, 100 * table.openingChance());
+    }
+}
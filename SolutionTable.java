@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Perfect-play values of every reachable 2x2 or 3x3 position, read from a table written
+ * by SmallBoardSolver.
+ *
+ * The keys and values are memory-mapped rather than read, so opening a table is instant
+ * whatever its size and a lookup only touches the pages its binary search lands on. The
+ * layer a position belongs to follows from its tile sum, so each search runs over one
+ * layer of at most about 100 thousand keys. Safe to use from any number of threads.
+ */
+public final class SolutionTable {
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final SmallBoard board;
+    private final int targetScore;
+    private final int targetExponent;
+    private final LongBuffer keys;
+    private final FloatBuffer scores;
+    private final FloatBuffer chances;
+    // First key and key count of the layer with tile sum 2 * i, count 0 if none
+    private final int[] layerFirst;
+    private final int[] layerCount;
+
+    private SolutionTable(SmallBoard board, int targetScore, LongBuffer keys, FloatBuffer scores,
+                          FloatBuffer chances, int[] layerFirst, int[] layerCount) {
+        this.board = board;
+        this.targetScore = targetScore;
+        this.targetExponent = Grid.exponentOf(targetScore);
+        this.keys = keys;
+        this.scores = scores;
+        this.chances = chances;
+        this.layerFirst = layerFirst;
+        this.layerCount = layerCount;
+    }
+
+    /**
+     * Where SmallBoardSolver writes, and Java2048 looks for, the table of a board size
+     * and target
+     */
+    public static Path defaultPath(int size, int targetScore) {
+        return Paths.get("solutions", String.format("%dx%d-%d.table", size, size, targetScore));
+    }
+
+    /**
+     * Map a table file
+     *
+     * @throws IOException if the file cannot be read or is not a table
+     */
+    public static SolutionTable open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SmallBoardSolver.HEADER_BYTES);
+            if (header.getInt() != SmallBoardSolver.MAGIC) {
+                throw new IOException("Not a solution table");
+            }
+            int version = header.get();
+            if (version != SmallBoardSolver.VERSION) {
+                throw new IOException("Unsupported table version " + version);
+            }
+            int size = header.getInt();
+            int targetScore = header.getInt();
+            long states = header.getLong();
+            int layers = header.getInt();
+            if (size < 2 || size > SmallBoard.MAX_SIZE || states < 1 || layers < 1) {
+                throw new IOException("Bad table header");
+            }
+            if (states > Integer.MAX_VALUE / 8) {
+                throw new IOException("Table too large to map: " + states + " positions");
+            }
+            long keysAt = SmallBoardSolver.HEADER_BYTES;
+            long scoresAt = keysAt + 8 * states;
+            long chancesAt = scoresAt + 4 * states;
+            long indexAt = chancesAt + 4 * states;
+            if (channel.size() != indexAt + (long) layers * SmallBoardSolver.LAYER_BYTES) {
+                throw new IOException("Table file has the wrong length");
+            }
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexAt,
+                    (long) layers * SmallBoardSolver.LAYER_BYTES);
+            int[] layerFirst = new int[0];
+            int[] layerCount = new int[0];
+            for (int l = 0; l < layers; l++) {
+                int sum = index.getInt();
+                long first = index.getLong();
+                int count = index.getInt();
+                if (sum < 0 || (sum & 1) != 0 || first < 0 || count < 0 || first + count > states) {
+                    throw new IOException("Bad layer " + l);
+                }
+                if (sum / 2 >= layerFirst.length) {
+                    layerFirst = Arrays.copyOf(layerFirst, sum / 2 + 1);
+                    layerCount = Arrays.copyOf(layerCount, sum / 2 + 1);
+                }
+                layerFirst[sum / 2] = (int) first;
+                layerCount[sum / 2] = count;
+            }
+            return new SolutionTable(SmallBoard.of(size), targetScore,
+                    channel.map(FileChannel.MapMode.READ_ONLY, keysAt, 8 * states).asLongBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, scoresAt, 4 * states).asFloatBuffer(),
+                    channel.map(FileChannel.MapMode.READ_ONLY, chancesAt, 4 * states).asFloatBuffer(),
+                    layerFirst, layerCount);
+        }
+    }
+
+    public int getSize() {
+        return board.size();
+    }
+
+    public int getTargetScore() {
+        return targetScore;
+    }
+
+    /**
+     * Index of a position's canonical key, or -1 if the game can never reach it
+     */
+    private int indexOf(long key) {
+        int layer = board.sum(key) / 2;
+        if (layer >= layerCount.length) {
+            return -1;
+        }
+        long canonical = board.canonical(key);
+        int low = layerFirst[layer];
+        int high = low + layerCount[layer] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long k = keys.get(mid);
+            if (k < canonical) {
+                low = mid + 1;
+            } else if (k > canonical) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Points still to come from a position under the play that scores the most, on
+     * average
+     *
+     * @param cells row-major exponents
+     * @return NaN if no game reaches the position
+     */
+    public double expectedScore(byte[] cells) {
+        int index = indexOf(board.key(cells));
+        return index < 0 ? Double.NaN : scores.get(index);
+    }
+
+    /**
+     * Chance of still making a tile of the target score under the play most likely to
+     *
+     * @return NaN if no game reaches the position
+     */
+    public double targetChance(byte[] cells) {
+        long key = board.key(cells);
+        if (board.maxExponent(key) >= targetExponent) {
+            return 1;
+        }
+        int index = indexOf(key);
+        return index < 0 ? Double.NaN : chances.get(index);
+    }
+
+    /**
+     * Points still to come on average after playing a move and then playing for score,
+     * counting those of the move itself
+     *
+     * @return NaN if the move does not change the board or leads off the table
+     */
+    public double expectedScore(byte[] cells, Direction move) {
+        long key = board.key(cells);
+        return afterMove(key, move, scores) + board.score(key, move);
+    }
+
+    /**
+     * Chance of making a tile of the target score after playing a move and then the best
+     * moves for that
+     *
+     * @return NaN if the move does not change the board or leads off the table
+     */
+    public double targetChance(byte[] cells, Direction move) {
+        long key = board.key(cells);
+        double chance = afterMove(key, move, chances);
+        return board.maxExponent(key) >= targetExponent && !Double.isNaN(chance) ? 1 : chance;
+    }
+
+    /**
+     * Value averaged over the spawns that can follow a move
+     */
+    private double afterMove(long key, Direction move, FloatBuffer values) {
+        long moved = board.move(key, move);
+        if (moved == key) {
+            return Double.NaN;
+        }
+        double total = 0;
+        int empty = 0;
+        for (int i = 0; i < board.cellCount(); i++) {
+            if (SmallBoard.get(moved, i) != 0) {
+                continue;
+            }
+            empty++;
+            int two = indexOf(SmallBoard.set(moved, i, 1));
+            int four = indexOf(SmallBoard.set(moved, i, 2));
+            if (two < 0 || four < 0) {
+                return Double.NaN;
+            }
+            total += (1 - SmallBoardSolver.FOUR_CHANCE) * values.get(two) + SmallBoardSolver.FOUR_CHANCE * values.get(four);
+        }
+        return total / empty;
+    }
+
+    /**
+     * The move with the highest expected score, or null if no move changes the board
+     */
+    public Direction bestForScore(byte[] cells) {
+        return best(cells, false);
+    }
+
+    /**
+     * The move with the best chance of reaching the target, or null if no move changes
+     * the board
+     */
+    public Direction bestForTarget(byte[] cells) {
+        return best(cells, true);
+    }
+
+    private Direction best(byte[] cells, boolean target) {
+        Direction best = null;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (Direction direction : DIRECTIONS) {
+            double value = target ? targetChance(cells, direction) : expectedScore(cells, direction);
+            if (value > bestValue) {
+                best = direction;
+                bestValue = value;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Average score of best play from a new game, over the two opening tiles
+     */
+    public double openingScore() {
+        return opening(scores);
+    }
+
+    /**
+     * Chance that a new game reaches the target under the best play for it
+     */
+    public double openingChance() {
+        return opening(chances);
+    }
+
+    private double opening(FloatBuffer values) {
+        int cells = board.cellCount();
+        double total = 0;
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j++) {
+                for (int e = 1; e <= 2 && i != j; e++) {
+                    for (int f = 1; f <= 2; f++) {
+                        double p = (e == 2 ? SmallBoardSolver.FOUR_CHANCE : 1 - SmallBoardSolver.FOUR_CHANCE)
+                                * (f == 2 ? SmallBoardSolver.FOUR_CHANCE : 1 - SmallBoardSolver.FOUR_CHANCE)
+                                / cells / (cells - 1);
+                        total += p * values.get(indexOf(SmallBoard.set(SmallBoard.set(0, i, e), j, f)));
+                    }
+                }
+            }
+        }
+        return total;
+    }
+}
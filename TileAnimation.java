@@ -0,0 +1,113 @@
+/**
+ * Where every tile went in one move, worked out from the board before the move.
+ *
+ * The slide is replayed line by line with the same rules as Grid.move, so each tile gets
+ * a source and a destination cell. Cells where two tiles merged, and the cell where a
+ * tile spawned afterwards, are marked for the pop at the end of the animation.
+ */
+public final class TileAnimation {
+    private final int size;
+    private final byte[] before;
+    // Tile i slides from cell from[i] to cell to[i] showing its exponent before the move
+    private final int[] from;
+    private final int[] to;
+    private int count;
+    private final boolean[] merged;
+    private final boolean[] spawned;
+
+    /**
+     * @param after the board after the move and its spawn, which must follow from the
+     *              board before it
+     */
+    public TileAnimation(BoardSnapshot after) {
+        this.size = after.size();
+        this.before = after.copyBefore();
+        this.from = new int[before.length];
+        this.to = new int[before.length];
+        this.merged = new boolean[before.length];
+        this.spawned = new boolean[before.length];
+
+        boolean[] filled = new boolean[before.length];
+        for (int i = 0; i < size; i++) {
+            switch (after.getMove()) {
+                case LEFT:
+                    slideLine(i * size, 1, filled);
+                    break;
+                case RIGHT:
+                    slideLine(i * size + size - 1, -1, filled);
+                    break;
+                case UP:
+                    slideLine(i, size, filled);
+                    break;
+                case DOWN:
+                    slideLine((size - 1) * size + i, -size, filled);
+                    break;
+            }
+        }
+        for (int i = 0; i < before.length; i++) {
+            spawned[i] = !filled[i] && after.get(i) != 0;
+        }
+    }
+
+    private void slideLine(int start, int step, boolean[] filled) {
+        int write = start;
+        boolean canMerge = false;
+        int pos = start;
+        for (int i = 0; i < size; i++, pos += step) {
+            int e = before[pos];
+            if (e == 0) {
+                continue;
+            }
+            if (canMerge && before[from[count - 1]] == e) {
+                merged[write - step] = true;
+                add(pos, write - step);
+                canMerge = false;
+            } else {
+                filled[write] = true;
+                add(pos, write);
+                write += step;
+                canMerge = true;
+            }
+        }
+    }
+
+    private void add(int source, int destination) {
+        from[count] = source;
+        to[count] = destination;
+        count++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of tiles on the board before the move
+     */
+    public int tileCount() {
+        return count;
+    }
+
+    public int fromCell(int tile) {
+        return from[tile];
+    }
+
+    public int toCell(int tile) {
+        return to[tile];
+    }
+
+    /**
+     * Exponent a tile shows while it slides
+     */
+    public int exponentOf(int tile) {
+        return before[from[tile]];
+    }
+
+    public boolean isMerged(int cell) {
+        return merged[cell];
+    }
+
+    public boolean isSpawned(int cell) {
+        return spawned[cell];
+    }
+}
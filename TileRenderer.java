@@ -0,0 +1,213 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
+
+/**
+ * Draws tiles from sprites that are rendered once per exponent.
+ *
+ * Colors and fonts are worked out when the renderer is created, and each tile value is
+ * drawn into its own VolatileImage the first time it is shown. Painting the board is then
+ * one blit per cell. A sprite whose contents the graphics device drops is drawn again
+ * from the palette, and one that no longer suits the screen is created again.
+ *
+ * Boards zoomed too far out for tiles are drawn as one pixel per cell, colored from the
+ * same palette, and stretched over the screen area of the cells.
+ */
+public class TileRenderer {
+    // Highest exponent a cell can hold
+    private static final int MAX_EXPONENT = Byte.MAX_VALUE;
+    private static final int ARC = 14;
+
+    private static final Color EMPTY_COLOR = new Color(0xcdc1b4);
+    private static final Color DARK_TEXT = new Color(0x776e65);
+    private static final Color LIGHT_TEXT = new Color(0xf9f6f2);
+
+    // Backgrounds of 2 to 2048, then 4096
+    private static final Color[] CLASSIC = {
+            new Color(0xeee4da), new Color(0xede0c8), new Color(0xf2b179), new Color(0xf59563),
+            new Color(0xf67c5f), new Color(0xf65e3b), new Color(0xedcf72), new Color(0xedcc61),
+            new Color(0xedc850), new Color(0xedc53f), new Color(0xedc22e), Color.DARK_GRAY
+    };
+    // 8192 to 131072
+    private static final Color[] PURPLE_SHADES = {
+            new Color(0xB19CD9), // Lavender
+            new Color(0x8B008B), // Dark Magenta
+            new Color(0x800080), // Purple
+            new Color(0x4B0082), // Indigo
+            new Color(0x2E0854)  // Dark Purple
+    };
+    // 262144 to 4194304
+    private static final Color[] BLUE_SHADES = {
+            new Color(0xADD8E6), // Light Blue
+            new Color(0x0000FF), // Blue
+            new Color(0x0000CD), // Medium Blue
+            new Color(0x00008B), // Dark Blue
+            new Color(0x000080)  // Navy
+    };
+    // Packed RGB background of every exponent, for drawing a cell as one pixel
+    private static final int[] RGB = new int[MAX_EXPONENT + 1];
+
+    static {
+        for (int e = 0; e <= MAX_EXPONENT; e++) {
+            RGB[e] = backgroundOf(e).getRGB();
+        }
+    }
+
+    private final Font baseFont;
+    private int tileSize;
+    private Font smallFont;
+    private Font mediumFont;
+    private Font largeFont;
+    private final VolatileImage[] sprites = new VolatileImage[MAX_EXPONENT + 1];
+    private BufferedImage cells; // One pixel per cell, reused while it is big enough
+
+    public TileRenderer(String fontName, int tileSize) {
+        this.baseFont = new Font(fontName, Font.BOLD, 36);
+        setTileSize(tileSize);
+    }
+
+    /**
+     * Change the size sprites are rendered at, e.g. after zooming; all sprites are
+     * rendered again as they are drawn
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize == this.tileSize) {
+            return;
+        }
+        this.tileSize = tileSize;
+        // Sizes for a 64 pixel tile, scaled to this one
+        float scale = tileSize / 64f;
+        this.smallFont = baseFont.deriveFont(24 * scale);
+        this.mediumFont = baseFont.deriveFont(32 * scale);
+        this.largeFont = baseFont.deriveFont(36 * scale);
+        for (int i = 0; i < sprites.length; i++) {
+            if (sprites[i] != null) {
+                sprites[i].flush();
+                sprites[i] = null;
+            }
+        }
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Background color of a tile by exponent, 0 for an empty cell
+     */
+    public static Color backgroundOf(int exponent) {
+        if (exponent == 0) {
+            return EMPTY_COLOR;
+        }
+        if (exponent <= 12) {
+            return CLASSIC[exponent - 1];
+        }
+        if (exponent <= 17) {
+            return PURPLE_SHADES[exponent - 13];
+        }
+        if (exponent <= 22) {
+            return BLUE_SHADES[exponent - 18];
+        }
+        return Color.GRAY;
+    }
+
+    /**
+     * Text color of a tile by exponent
+     */
+    public static Color foregroundOf(int exponent) {
+        return exponent < 4 ? DARK_TEXT : LIGHT_TEXT;
+    }
+
+    /**
+     * Label of a tile; values that do not fit an int are written as powers of two
+     */
+    static String labelOf(int exponent) {
+        if (exponent == 0) {
+            return "";
+        }
+        return exponent < 31 ? String.valueOf(1 << exponent) : "2^" + exponent;
+    }
+
+    /**
+     * Draw the tile with the given exponent with its top left corner at (x, y)
+     */
+    public void draw(Graphics2D g, int exponent, int x, int y) {
+        draw(g, exponent, x, y, tileSize);
+    }
+
+    /**
+     * Draw the tile scaled to the given size, for tiles that pop in or out
+     */
+    public void draw(Graphics2D g, int exponent, int x, int y, int size) {
+        GraphicsConfiguration config = g.getDeviceConfiguration();
+        VolatileImage sprite = sprites[exponent];
+        do {
+            int status = sprite == null ? VolatileImage.IMAGE_INCOMPATIBLE : sprite.validate(config);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (sprite != null) {
+                    sprite.flush();
+                }
+                sprite = config.createCompatibleVolatileImage(tileSize, tileSize, Transparency.TRANSLUCENT);
+                sprites[exponent] = sprite;
+                render(sprite, exponent);
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                // The surface is back, but blank
+                render(sprite, exponent);
+            }
+            g.drawImage(sprite, x, y, size, size, null);
+        } while (sprite.contentsLost());
+    }
+
+    /**
+     * Draw the cells in columns firstX..lastX and rows firstY..lastY of a board, one pixel
+     * each, stretched over the screen rectangle (x1, y1)-(x2, y2)
+     */
+    public void drawCells(Graphics2D g, BoardSnapshot board, int firstX, int lastX, int firstY, int lastY,
+                          int x1, int y1, int x2, int y2) {
+        int columns = lastX - firstX + 1;
+        int rows = lastY - firstY + 1;
+        if (columns <= 0 || rows <= 0) {
+            return;
+        }
+        if (cells == null || cells.getWidth() < columns || cells.getHeight() < rows) {
+            cells = new BufferedImage(Math.max(columns, cells == null ? 0 : cells.getWidth()),
+                    Math.max(rows, cells == null ? 0 : cells.getHeight()), BufferedImage.TYPE_INT_RGB);
+        }
+        int[] pixels = ((DataBufferInt) cells.getRaster().getDataBuffer()).getData();
+        int stride = cells.getWidth();
+        int size = board.size();
+        for (int y = 0; y < rows; y++) {
+            int cell = firstX + (firstY + y) * size;
+            int pixel = y * stride;
+            for (int x = 0; x < columns; x++) {
+                pixels[pixel + x] = RGB[board.get(cell + x)];
+            }
+        }
+        g.drawImage(cells, x1, y1, x2, y2, 0, 0, columns, rows, null);
+    }
+
+    private void render(VolatileImage sprite, int exponent) {
+        Graphics2D g = sprite.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, tileSize, tileSize);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(backgroundOf(exponent));
+            g.fillRoundRect(0, 0, tileSize, tileSize, ARC, ARC);
+            if (exponent == 0) {
+                return;
+            }
+
+            Font font = exponent < 7 ? largeFont : exponent < 10 ? mediumFont : smallFont;
+            String s = labelOf(exponent);
+            FontMetrics fm = g.getFontMetrics(font);
+            g.setFont(font);
+            g.setColor(foregroundOf(exponent));
+            g.drawString(s, (tileSize - fm.stringWidth(s)) / 2, (tileSize + fm.getAscent()) / 2 - 2);
+        } finally {
+            g.dispose();
+        }
+    }
+}
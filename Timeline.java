@@ -0,0 +1,656 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Undo, redo and branching history as a tree of snapshots.
+ *
+ * A snapshot never changes once created, apart from its tree links and from letting go
+ * of its cells when it becomes the root. It keeps only the cells a move changed: their
+ * indexes and each one's old exponent XOR the new one, in two primitive arrays. Applying
+ * those flips turns the parent's board into the child's and back again, so one list
+ * serves both undo and redo. The timeline holds the board of the root and the board of
+ * the current snapshot; undo, redo and jumping to any earlier snapshot flip the cells
+ * along the way, and playing a move from an earlier snapshot starts a new branch next to
+ * the old one.
+ *
+ * The history is bounded by a depth and a memory cap. When either is exceeded the root
+ * is dropped, together with any branches that hang off it, oldest first, and the new
+ * root's flips are applied to the root board.
+ */
+public class Timeline {
+    public static final int DEFAULT_DEPTH = 10000;
+    public static final long DEFAULT_MEMORY_BYTES = 16L << 20;
+
+    // Rough object and array header size, for the memory estimate
+    private static final int HEADER_BYTES = 16;
+    // Rough size of a snapshot object and the headers of its two arrays
+    private static final int SNAPSHOT_BYTES = 64 + 2 * HEADER_BYTES;
+    // Every changed cell costs an int index and a byte of flipped bits
+    private static final int BYTES_PER_CELL = 5;
+    private static final int[] NO_CELLS = new int[0];
+    private static final byte[] NO_FLIPS = new byte[0];
+
+    // Snapshot flags in write()
+    private static final int WIN = 1;
+    private static final int LOSE = 2;
+    private static final int PARENT_WIN = 4;
+    private static final int PARENT_LOSE = 8;
+    private static final int REDO = 16; // The parent's redo child
+
+    /**
+     * Changed cells, score and flags after a move
+     */
+    public static final class Snapshot {
+        // Cells the move changed, by index, and old XOR new exponent of each; empty on the
+        // root, whose board the timeline keeps
+        private int[] changed;
+        private byte[] flips;
+        private final Direction move; // Move that led here, null at the start of the game
+        private final int score;
+        private final long spawns; // Tiles spawned so far
+        private final boolean win;
+        private final boolean lose;
+        // Flags before the move, restored when this move is undone
+        private final boolean parentWin;
+        private final boolean parentLose;
+
+        // Tree links; only the timeline changes them
+        private Snapshot parent;
+        private Snapshot firstChild;
+        private Snapshot nextSibling;
+        // Child that redo goes to. On every ancestor of the current snapshot this is the
+        // child on the path to it.
+        private Snapshot redo;
+        private int depth;
+
+        private Snapshot(int[] changed, byte[] flips, Direction move, int score, long spawns, boolean win,
+                         boolean lose, boolean parentWin, boolean parentLose) {
+            this.changed = changed;
+            this.flips = flips;
+            this.move = move;
+            this.score = score;
+            this.spawns = spawns;
+            this.win = win;
+            this.lose = lose;
+            this.parentWin = parentWin;
+            this.parentLose = parentLose;
+        }
+
+        public Direction getMove() {
+            return move;
+        }
+
+        /**
+         * Moves played from the start of the game to here
+         */
+        public int getPly() {
+            return depth;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public long getSpawns() {
+            return spawns;
+        }
+
+        public boolean isWin() {
+            return win;
+        }
+
+        public boolean isLose() {
+            return lose;
+        }
+
+        /**
+         * Win flag from before the move that led here
+         */
+        public boolean wasWin() {
+            return parentWin;
+        }
+
+        /**
+         * Lose flag from before the move that led here
+         */
+        public boolean wasLose() {
+            return parentLose;
+        }
+
+        public Snapshot getParent() {
+            return parent;
+        }
+
+        /**
+         * Newest child; older ones are reached through getNextSibling()
+         */
+        public Snapshot getFirstChild() {
+            return firstChild;
+        }
+
+        public Snapshot getNextSibling() {
+            return nextSibling;
+        }
+
+        /**
+         * Estimated bytes this snapshot holds
+         */
+        private long ownBytes() {
+            return SNAPSHOT_BYTES + (long) BYTES_PER_CELL * changed.length;
+        }
+
+        /**
+         * Turn the parent's board into this one's, or this one's back into the parent's
+         */
+        private void flip(byte[] board) {
+            for (int i = 0; i < changed.length; i++) {
+                board[changed[i]] ^= flips[i];
+            }
+        }
+    }
+
+    /**
+     * A timeline as it was when freeze() was called, which can be written from any thread
+     */
+    public static final class Frozen {
+        private final int rootDepth;
+        private final int currentIndex;
+        private final byte[] rootBoard;
+        // By snapshot, in write order; the snapshots' own fields are final
+        private final Snapshot[] nodes;
+        private final int[] parents;
+        private final boolean[] redo;
+        private final int[][] changed;
+        private final byte[][] flips;
+
+        private Frozen(int rootDepth, int currentIndex, byte[] rootBoard, Snapshot[] nodes, int[] parents,
+                       boolean[] redo, int[][] changed, byte[][] flips) {
+            this.rootDepth = rootDepth;
+            this.currentIndex = currentIndex;
+            this.rootBoard = rootBoard;
+            this.nodes = nodes;
+            this.parents = parents;
+            this.redo = redo;
+            this.changed = changed;
+            this.flips = flips;
+        }
+
+        /**
+         * Write the tree in the format of Timeline.write()
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(nodes.length);
+            out.writeInt(rootDepth);
+            out.writeInt(currentIndex);
+            out.write(rootBoard);
+            byte[] buffer = new byte[BYTES_PER_CELL * 64];
+            for (int i = 0; i < nodes.length; i++) {
+                Snapshot node = nodes[i];
+                out.writeInt(parents[i]);
+                out.writeByte(node.move != null ? node.move.ordinal() : -1);
+                out.writeInt(node.score);
+                out.writeLong(node.spawns);
+                out.writeByte((node.win ? WIN : 0) | (node.lose ? LOSE : 0) | (node.parentWin ? PARENT_WIN : 0)
+                        | (node.parentLose ? PARENT_LOSE : 0) | (redo[i] ? REDO : 0));
+                int[] cells = changed[i];
+                out.writeInt(cells.length);
+                if (buffer.length < BYTES_PER_CELL * cells.length) {
+                    buffer = new byte[BYTES_PER_CELL * cells.length];
+                }
+                // One write per snapshot rather than one per cell
+                for (int k = 0; k < cells.length; k++) {
+                    buffer[4 * k] = (byte) (cells[k] >>> 24);
+                    buffer[4 * k + 1] = (byte) (cells[k] >>> 16);
+                    buffer[4 * k + 2] = (byte) (cells[k] >>> 8);
+                    buffer[4 * k + 3] = (byte) cells[k];
+                }
+                System.arraycopy(flips[i], 0, buffer, 4 * cells.length, cells.length);
+                out.write(buffer, 0, BYTES_PER_CELL * cells.length);
+            }
+        }
+    }
+
+    private final int maxDepth;
+    private final long maxBytes;
+
+    private Snapshot root;
+    private Snapshot current;
+    private byte[] rootBoard;
+    private byte[] board; // Board of the current snapshot
+    private long bytes;
+    private int count; // Snapshots in the tree
+
+    // Scratch for push(): the grid's cells, and the changes found so far
+    private byte[] pushed;
+    private int[] pushedCells = new int[64];
+    private byte[] pushedFlips = new byte[64];
+
+    public Timeline(Grid grid, long spawns, int maxDepth, long maxBytes) {
+        this(maxDepth, maxBytes);
+        reset(grid, spawns);
+    }
+
+    private Timeline(int maxDepth, long maxBytes) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Undo depth must be at least 1: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Drop all history and start again from the grid
+     */
+    public void reset(Grid grid, long spawns) {
+        rootBoard = new byte[grid.cellCount()];
+        grid.copyTo(rootBoard);
+        board = rootBoard.clone();
+        pushed = new byte[rootBoard.length];
+        root = new Snapshot(NO_CELLS, NO_FLIPS, null, 0, spawns, false, false, false, false);
+        current = root;
+        count = 1;
+        bytes = boardBytes(rootBoard.length) + root.ownBytes();
+    }
+
+    /**
+     * Memory of the root board, the current board and the scratch board
+     */
+    private static long boardBytes(int cells) {
+        return 3L * (HEADER_BYTES + cells);
+    }
+
+    public Snapshot getCurrent() {
+        return current;
+    }
+
+    public Snapshot getRoot() {
+        return root;
+    }
+
+    /**
+     * Number of moves that can be undone
+     */
+    public int undoDepth() {
+        return current.depth - root.depth;
+    }
+
+    /**
+     * Estimated bytes held by every snapshot in the tree and the boards
+     */
+    public long memoryBytes() {
+        return bytes;
+    }
+
+    /**
+     * Write the current snapshot's board into a grid that holds the board of another
+     * snapshot. Only the cells changed by the moves between the two are written.
+     *
+     * @param shown snapshot the grid matches, or null to write every cell
+     */
+    public void copyTo(Grid grid, Snapshot shown) {
+        if (shown == null) {
+            grid.copyFrom(board);
+            return;
+        }
+        Snapshot from = shown;
+        Snapshot to = current;
+        while (from != to) {
+            Snapshot step;
+            if (from.depth >= to.depth) {
+                step = from;
+                from = from.parent;
+            } else {
+                step = to;
+                to = to.parent;
+            }
+            for (int cell : step.changed) {
+                grid.set(cell, board[cell]);
+            }
+        }
+    }
+
+    /**
+     * Record the grid as a new child of the current snapshot, keeping only the cells that
+     * differ from it, and make the child current
+     *
+     * @param move       move that led to the grid
+     * @param spawns     tiles spawned so far
+     * @param parentWin  win flag before the move, restored when it is undone
+     * @param parentLose lose flag before the move, restored when it is undone
+     */
+    public Snapshot push(Grid grid, Direction move, int score, long spawns, boolean win, boolean lose,
+                         boolean parentWin, boolean parentLose) {
+        grid.copyTo(pushed);
+        int cells = board.length;
+        int changed = 0;
+        int i = Arrays.mismatch(board, pushed);
+        while (i >= 0) {
+            if (changed == pushedCells.length) {
+                pushedCells = Arrays.copyOf(pushedCells, changed * 2);
+                pushedFlips = Arrays.copyOf(pushedFlips, changed * 2);
+            }
+            pushedCells[changed] = i;
+            pushedFlips[changed] = (byte) (board[i] ^ pushed[i]);
+            changed++;
+            board[i] = pushed[i];
+            int from = i + 1;
+            int next = from < cells ? Arrays.mismatch(board, from, cells, pushed, from, cells) : -1;
+            i = next < 0 ? -1 : from + next;
+        }
+
+        Snapshot parent = current;
+        Snapshot child = new Snapshot(Arrays.copyOf(pushedCells, changed), Arrays.copyOf(pushedFlips, changed),
+                move, score, spawns, win, lose, parentWin, parentLose);
+        // Newest branch first, so linking never walks the old ones
+        child.parent = parent;
+        child.depth = parent.depth + 1;
+        child.nextSibling = parent.firstChild;
+        parent.firstChild = child;
+        parent.redo = child;
+        current = child;
+        count++;
+        bytes += child.ownBytes();
+        trim();
+        return child;
+    }
+
+    /**
+     * Drop roots until the history fits the depth and memory caps
+     */
+    private void trim() {
+        while (root != current && (undoDepth() > maxDepth || bytes > maxBytes)) {
+            Snapshot next = root.redo;
+            for (Snapshot child = root.firstChild; child != null; child = child.nextSibling) {
+                if (child != next) {
+                    drop(child);
+                }
+            }
+            // The new root's board is kept whole, so it needs its changes no more
+            count--;
+            bytes -= root.ownBytes() + next.ownBytes();
+            next.flip(rootBoard);
+            next.changed = NO_CELLS;
+            next.flips = NO_FLIPS;
+            bytes += next.ownBytes();
+            next.parent = null;
+            next.nextSibling = null;
+            root = next;
+        }
+    }
+
+    /**
+     * Take a snapshot and everything below it off the counts, walked without recursion
+     * since branches can be thousands of moves long
+     */
+    private void drop(Snapshot top) {
+        Snapshot node = top;
+        while (true) {
+            count--;
+            bytes -= node.ownBytes();
+            if (node.firstChild != null) {
+                node = node.firstChild;
+                continue;
+            }
+            while (node != top && node.nextSibling == null) {
+                node = node.parent;
+            }
+            if (node == top) {
+                return;
+            }
+            node = node.nextSibling;
+        }
+    }
+
+    /**
+     * Write the whole tree for read(): the root's board, then every snapshot after its
+     * parent with the cells its move changed, so the output is about as big as the history
+     * is in memory.
+     *
+     * Format, big-endian: int snapshot count, int ply of the root, int index of the
+     * current snapshot, size * size bytes of the root's exponents, row-major, then for
+     * every snapshot in depth-first order, newest branch first:
+     * <pre>
+     *   int   index of the parent, -1 for the root
+     *   byte  move ordinal, -1 for none
+     *   int   score
+     *   long  spawns
+     *   byte  flags
+     *   int   number of changed cells, 0 for the root
+     *   ints  their indexes, in increasing order
+     *   bytes their flips, old exponent XOR new, in the same order
+     * </pre>
+     */
+    public void write(DataOutput out) throws IOException {
+        freeze().write(out);
+    }
+
+    /**
+     * Take the tree as it is now, to write on another thread while this one plays on. Only
+     * the tree links are walked; the cell arrays are shared, since a snapshot's arrays are
+     * never changed, only let go of when it becomes the root.
+     */
+    public Frozen freeze() {
+        Snapshot[] nodes = new Snapshot[count];
+        int[] parents = new int[count];
+        boolean[] redo = new boolean[count];
+        int[][] changed = new int[count][];
+        byte[][] flips = new byte[count][];
+        int currentIndex = 0;
+        // Index of each snapshot on the path from the root to the one being taken
+        int[] path = new int[16];
+        int index = 0;
+        for (Snapshot node = root; node != null; node = nextInOrder(node), index++) {
+            int level = node.depth - root.depth;
+            if (level == path.length) {
+                path = Arrays.copyOf(path, path.length * 2);
+            }
+            path[level] = index;
+            nodes[index] = node;
+            parents[index] = node == root ? -1 : path[level - 1];
+            redo[index] = node.parent != null && node.parent.redo == node;
+            changed[index] = node.changed;
+            flips[index] = node.flips;
+            if (node == current) {
+                currentIndex = index;
+            }
+        }
+        return new Frozen(root.depth, currentIndex, rootBoard.clone(), nodes, parents, redo, changed, flips);
+    }
+
+    /**
+     * Rebuild a tree written by write()
+     *
+     * @throws IOException if the data is damaged
+     */
+    public static Timeline read(DataInput in, int size, int maxDepth, long maxBytes) throws IOException {
+        int count = in.readInt();
+        int rootDepth = in.readInt();
+        int currentIndex = in.readInt();
+        if (count < 1 || rootDepth < 0 || currentIndex < 0 || currentIndex >= count) {
+            throw new IOException("Bad history header");
+        }
+        int cells = size * size;
+        Direction[] directions = Direction.values();
+        Timeline timeline = new Timeline(maxDepth, maxBytes);
+        timeline.rootBoard = new byte[cells];
+        in.readFully(timeline.rootBoard);
+        timeline.pushed = new byte[cells];
+        timeline.bytes = boardBytes(cells);
+        timeline.count = count;
+
+        byte[] buffer = new byte[4 * 64];
+        // A parent is always on the path from the root to the snapshot read last
+        Snapshot[] path = new Snapshot[16];
+        int[] pathIndex = new int[16];
+        Snapshot[] lastChild = new Snapshot[16]; // Newest snapshot read at each level
+        int top = -1; // Level of the snapshot read last
+        for (int i = 0; i < count; i++) {
+            int parentIndex = in.readInt();
+            int move = in.readByte();
+            int score = in.readInt();
+            long spawns = in.readLong();
+            int flags = in.readByte();
+            int changedCount = in.readInt();
+            if (move < -1 || move >= directions.length || (i == 0) != (parentIndex == -1)
+                    || changedCount < 0 || changedCount > (i == 0 ? 0 : cells)) {
+                throw new IOException("Bad history entry " + i);
+            }
+            int level = top;
+            while (level >= 0 && pathIndex[level] != parentIndex) {
+                level--;
+            }
+            if (i > 0 && level < 0) {
+                throw new IOException("Bad parent in history entry " + i);
+            }
+            Snapshot parent = level >= 0 ? path[level] : null;
+            level++;
+            if (level == path.length) {
+                path = Arrays.copyOf(path, level * 2);
+                pathIndex = Arrays.copyOf(pathIndex, level * 2);
+                lastChild = Arrays.copyOf(lastChild, level * 2);
+            }
+
+            int[] changed = changedCount == 0 ? NO_CELLS : new int[changedCount];
+            byte[] flips = changedCount == 0 ? NO_FLIPS : new byte[changedCount];
+            if (buffer.length < 4 * changedCount) {
+                buffer = new byte[4 * changedCount];
+            }
+            in.readFully(buffer, 0, 4 * changedCount);
+            for (int k = 0; k < changedCount; k++) {
+                changed[k] = (buffer[4 * k] & 0xFF) << 24 | (buffer[4 * k + 1] & 0xFF) << 16
+                        | (buffer[4 * k + 2] & 0xFF) << 8 | buffer[4 * k + 3] & 0xFF;
+                if (changed[k] < (k == 0 ? 0 : changed[k - 1] + 1) || changed[k] >= cells) {
+                    throw new IOException("Bad cell in history entry " + i);
+                }
+            }
+            in.readFully(flips);
+            Snapshot node = new Snapshot(changed, flips, move < 0 ? null : directions[move], score, spawns,
+                    (flags & WIN) != 0, (flags & LOSE) != 0, (flags & PARENT_WIN) != 0,
+                    (flags & PARENT_LOSE) != 0);
+            timeline.bytes += node.ownBytes();
+            if (parent == null) {
+                node.depth = rootDepth;
+                timeline.root = node;
+            } else {
+                node.parent = parent;
+                node.depth = parent.depth + 1;
+                // Append, keeping the written order of branches
+                Snapshot previous = lastChild[level];
+                if (previous != null && previous.parent == parent) {
+                    previous.nextSibling = node;
+                } else {
+                    parent.firstChild = node;
+                }
+                if ((flags & REDO) != 0) {
+                    parent.redo = node;
+                }
+            }
+            path[level] = node;
+            pathIndex[level] = i;
+            lastChild[level] = node;
+            top = level;
+            if (i == currentIndex) {
+                timeline.current = node;
+            }
+        }
+
+        // Flips commute, so the current board is the root's with every change on the way
+        timeline.board = timeline.rootBoard.clone();
+        for (Snapshot node = timeline.current; node != null; node = node.parent) {
+            node.flip(timeline.board);
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            if (timeline.rootBoard[cell] < 0 || timeline.board[cell] < 0) {
+                throw new IOException("Bad exponent in history");
+            }
+        }
+        return timeline;
+    }
+
+    /**
+     * Next snapshot in depth-first order, newest branch first, or null after the last
+     */
+    private Snapshot nextInOrder(Snapshot node) {
+        if (node.firstChild != null) {
+            return node.firstChild;
+        }
+        while (node != root && node.nextSibling == null) {
+            node = node.parent;
+        }
+        return node == root ? null : node.nextSibling;
+    }
+
+    /**
+     * Step back to the parent snapshot
+     *
+     * @return the snapshot that was undone, or null at the root
+     */
+    public Snapshot undo() {
+        if (current == root) {
+            return null;
+        }
+        Snapshot undone = current;
+        undone.flip(board);
+        current = current.parent;
+        current.redo = undone;
+        return undone;
+    }
+
+    /**
+     * Step forward along the redo branch
+     *
+     * @return the new current snapshot, or null if there is nothing to redo
+     */
+    public Snapshot redo() {
+        if (current.redo == null) {
+            return null;
+        }
+        current = current.redo;
+        current.flip(board);
+        return current;
+    }
+
+    /**
+     * Point redo at the next branch of the current snapshot, wrapping around
+     *
+     * @return the new redo target, or null if the current snapshot has no children
+     */
+    public Snapshot nextBranch() {
+        Snapshot redo = current.redo;
+        if (redo == null) {
+            return null;
+        }
+        current.redo = redo.nextSibling != null ? redo.nextSibling : current.firstChild;
+        return current.redo;
+    }
+
+    /**
+     * Make any snapshot of this timeline current. The next move from it starts a new
+     * branch.
+     */
+    public void jumpTo(Snapshot snapshot) {
+        Snapshot node = snapshot;
+        while (node != root) {
+            if (node.parent == null) {
+                throw new IllegalArgumentException("Snapshot is not part of this timeline");
+            }
+            node.parent.redo = node;
+            node = node.parent;
+        }
+        // Undo back to where the two paths meet and redo down to the snapshot
+        Snapshot from = current;
+        Snapshot to = snapshot;
+        while (from != to) {
+            if (from.depth >= to.depth) {
+                from.flip(board);
+                from = from.parent;
+            } else {
+                to.flip(board);
+                to = to.parent;
+            }
+        }
+        current = snapshot;
+    }
+}
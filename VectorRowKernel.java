@@ -0,0 +1,154 @@
+import java.util.Arrays;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RowKernel on the incubating Vector API, one vector of the preferred byte species at a
+ * time. A vector whose lanes are all kept is stored whole and one with none is skipped;
+ * the others are packed eight lanes at a time, by a shuffle looked up by those lanes' mask
+ * bits. That needs nothing past the JDK 17 API.
+ *
+ * Grid loads this class by name, so everything else builds and runs without the
+ * jdk.incubator.vector module. Compile and run it with --add-modules jdk.incubator.vector.
+ */
+public final class VectorRowKernel implements RowKernel {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    // A power of two from 8 up to 64, so a vector's bits never straddle two words
+    private static final int LANES = SPECIES.length();
+    private static final long ALL_LANES = LANES == 64 ? -1L : (1L << LANES) - 1;
+    private static final VectorSpecies<Byte> GROUP = ByteVector.SPECIES_64;
+    private static final int GROUP_LANES = GROUP.length();
+    // By mask of a group: the lanes with their bit set first, in order
+    private static final VectorShuffle<Byte>[] PACK = packShuffles();
+
+    @SuppressWarnings("unchecked")
+    private static VectorShuffle<Byte>[] packShuffles() {
+        VectorShuffle<Byte>[] shuffles = (VectorShuffle<Byte>[]) new VectorShuffle<?>[1 << GROUP_LANES];
+        int[] lanes = new int[GROUP_LANES];
+        for (int mask = 0; mask < shuffles.length; mask++) {
+            int n = 0;
+            for (int lane = 0; lane < GROUP_LANES; lane++) {
+                if ((mask & (1 << lane)) != 0) {
+                    lanes[n++] = lane;
+                }
+            }
+            for (int lane = 0; lane < GROUP_LANES; lane++) {
+                if ((mask & (1 << lane)) == 0) {
+                    lanes[n++] = lane;
+                }
+            }
+            shuffles[mask] = VectorShuffle.fromArray(GROUP, lanes, 0);
+        }
+        return shuffles;
+    }
+
+    @Override
+    public int compact(byte[] cells, int from, int length, byte[] tiles) {
+        int count = 0;
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += LANES) {
+            ByteVector v = ByteVector.fromArray(SPECIES, cells, from + i);
+            long full = v.compare(VectorOperators.NE, 0).toLong();
+            if (full == ALL_LANES) {
+                v.intoArray(tiles, count);
+                count += LANES;
+            } else if (full != 0) {
+                count = pack(cells, from + i, length - i, full, tiles, count);
+            }
+        }
+        if (i < length) {
+            // Lanes past the row load as 0, so they are never packed
+            ByteVector v = ByteVector.fromArray(SPECIES, cells, from + i, SPECIES.indexInRange(i, length));
+            long full = v.compare(VectorOperators.NE, 0).toLong();
+            count = pack(cells, from + i, length - i, full, tiles, count);
+        }
+        return count;
+    }
+
+    @Override
+    public void equalPairs(byte[] tiles, int count, long[] equal) {
+        Arrays.fill(equal, 0, (count + 63) >>> 6, 0);
+        int pairs = count - 1;
+        for (int i = 0; i < pairs; i += LANES) {
+            ByteVector a = ByteVector.fromArray(SPECIES, tiles, i);
+            ByteVector b = ByteVector.fromArray(SPECIES, tiles, i + 1);
+            equal[i >>> 6] |= a.compare(VectorOperators.EQ, b).toLong() << (i & 63);
+        }
+        if (pairs > 0 && (pairs & 63) != 0) {
+            // The last vector compared bytes past the tiles
+            equal[pairs >>> 6] &= (1L << pairs) - 1;
+        }
+    }
+
+    @Override
+    public int merge(byte[] tiles, int count, long[] raise, long[] keep) {
+        int kept = 0;
+        // Never writes past lane i + LANES - 1, which is already loaded or raised in place
+        for (int i = 0; i < count; i += LANES) {
+            long up = (raise[i >>> 6] >>> (i & 63)) & ALL_LANES;
+            long stay = (keep[i >>> 6] >>> (i & 63)) & ALL_LANES;
+            if (up == 0 && stay == ALL_LANES && kept == i) {
+                kept += LANES;
+                continue;
+            }
+            ByteVector v = ByteVector.fromArray(SPECIES, tiles, i);
+            if (up != 0) {
+                v = v.add((byte) 1, VectorMask.fromLong(SPECIES, up));
+            }
+            if (stay == ALL_LANES) {
+                v.intoArray(tiles, kept);
+                kept += LANES;
+            } else if (stay != 0) {
+                if (up != 0) {
+                    v.intoArray(tiles, i);
+                }
+                kept = pack(tiles, i, LANES, stay, tiles, kept);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Append the bytes of source[at, at + LANES) whose bit is set in mask to tiles at
+     * count, reading nothing at limit or past it
+     *
+     * @return count after them
+     */
+    private static int pack(byte[] source, int at, int limit, long mask, byte[] tiles, int count) {
+        for (int g = 0; mask != 0; g += GROUP_LANES, mask >>>= GROUP_LANES) {
+            int lanes = (int) mask & ((1 << GROUP_LANES) - 1);
+            if (lanes == 0) {
+                continue;
+            }
+            ByteVector v = limit - g >= GROUP_LANES
+                    ? ByteVector.fromArray(GROUP, source, at + g)
+                    : ByteVector.fromArray(GROUP, source, at + g, GROUP.indexInRange(g, limit));
+            // Writes up to the end of group g at most, so no unread byte of source is lost
+            v.rearrange(PACK[lanes]).intoArray(tiles, count);
+            count += Integer.bitCount(lanes);
+        }
+        return count;
+    }
+
+    @Override
+    public int lastMismatch(byte[] a, int aFrom, byte[] b, int length) {
+        int i = length;
+        while (i >= LANES) {
+            i -= LANES;
+            VectorMask<Byte> differ = ByteVector.fromArray(SPECIES, a, aFrom + i)
+                    .compare(VectorOperators.NE, ByteVector.fromArray(SPECIES, b, i));
+            if (differ.anyTrue()) {
+                return i + differ.lastTrue();
+            }
+        }
+        for (i--; i >= 0; i--) {
+            if (a[aFrom + i] != b[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
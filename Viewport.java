@@ -0,0 +1,156 @@
+/**
+ * The part of the board a panel shows, and at what zoom.
+ *
+ * At zoom 1 tile x starts at x * (tileSize + margin) + margin pixels from the board's
+ * left edge, as the panel always laid it out. The view scrolls over the board in screen
+ * pixels and is kept inside it. Zooming out stops once the whole board fits, and below
+ * CELL_PITCH pixels per tile the panel should draw plain cells instead of tiles.
+ */
+public class Viewport {
+    public static final double MAX_ZOOM = 2;
+    // Tile pitch in screen pixels below which tiles are drawn as single colored cells
+    public static final double CELL_PITCH = 12;
+
+    private final int gridSize;
+    private final int tileSize;
+    private final int margin;
+    private final int top; // Screen y of the board area
+
+    private int width; // Size of the board area on screen
+    private int height;
+    private double zoom = 1;
+    private double minZoom = 1;
+    private double viewX; // Board pixel, at the current zoom, at the left edge of the view
+    private double viewY;
+
+    /**
+     * @param top screen y where the board area starts, below the score
+     */
+    public Viewport(int gridSize, int tileSize, int margin, int top) {
+        this.gridSize = gridSize;
+        this.tileSize = tileSize;
+        this.margin = margin;
+        this.top = top;
+    }
+
+    /**
+     * Width of the whole board in pixels at the given zoom
+     */
+    public double boardSize(double zoom) {
+        return (gridSize * (tileSize + margin) + margin) * zoom;
+    }
+
+    /**
+     * Resize the board area on screen; the zoom is kept where it can be
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        double fit = Math.min(width, height) / boardSize(1);
+        minZoom = Math.min(1, fit);
+        setZoom(zoom);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Zoom out until the whole board fits, or to 1 if it already does
+     */
+    public void fit() {
+        viewX = 0;
+        viewY = 0;
+        setZoom(minZoom);
+    }
+
+    /**
+     * Zoom by a factor keeping the board point under screen pixel (x, y) in place
+     */
+    public void zoomAt(double factor, int x, int y) {
+        double old = zoom;
+        double anchorX = (x + viewX) / old;
+        double anchorY = (y - top + viewY) / old;
+        setZoom(old * factor);
+        viewX = anchorX * zoom - x;
+        viewY = anchorY * zoom - (y - top);
+        clamp();
+    }
+
+    /**
+     * Scroll the view so the board moves by (dx, dy) screen pixels
+     */
+    public void panBy(int dx, int dy) {
+        viewX -= dx;
+        viewY -= dy;
+        clamp();
+    }
+
+    private void setZoom(double zoom) {
+        this.zoom = Math.max(minZoom, Math.min(MAX_ZOOM, zoom));
+        clamp();
+    }
+
+    private void clamp() {
+        double board = boardSize(zoom);
+        viewX = Math.max(0, Math.min(board - width, viewX));
+        viewY = Math.max(0, Math.min(board - height, viewY));
+    }
+
+    /**
+     * Whether tiles are too small to draw, so each cell is one block of color
+     */
+    public boolean isCellMode() {
+        return pitch() < CELL_PITCH;
+    }
+
+    /**
+     * Distance between the starts of neighbouring tiles in screen pixels
+     */
+    public double pitch() {
+        return (tileSize + margin) * zoom;
+    }
+
+    /**
+     * Size of a tile on screen
+     */
+    public int tileSize() {
+        return Math.max(1, (int) Math.round(tileSize * zoom));
+    }
+
+    /**
+     * Screen x of the left edge of tile column x
+     */
+    public int tileX(int x) {
+        return (int) Math.round(x * pitch() + margin * zoom - viewX);
+    }
+
+    /**
+     * Screen y of the top edge of tile row y
+     */
+    public int tileY(int y) {
+        return (int) Math.round(y * pitch() + margin * zoom - viewY) + top;
+    }
+
+    /**
+     * Tile column whose tile or the margin before it covers screen x; may be off the board
+     */
+    public int columnAt(int x) {
+        return (int) Math.floor((x + viewX) / pitch());
+    }
+
+    /**
+     * Tile row whose tile or the margin above it covers screen y; may be off the board
+     */
+    public int rowAt(int y) {
+        return (int) Math.floor((y - top + viewY) / pitch());
+    }
+}